@@ -0,0 +1,242 @@
+/* BlurSobelPipeline.java */
+
+/**
+ *  The BlurSobelPipeline class computes boxBlur(n) followed by sobelEdges()
+ *  one row at a time.  The rows of the input image are pushed in from top to
+ *  bottom.  Each blur pass, and then the Sobel operator, keeps a ring of the
+ *  last three rows it has received, and emits an output row to the next stage
+ *  as soon as the rows above and below it have arrived.  Memory use is a few
+ *  rows per stage plus the output, no matter how tall the image is.
+ *
+ *  A row is held as three planes of width ints: red, then green, then blue.
+ */
+class BlurSobelPipeline {
+
+  private Stage first;
+
+  /**
+   *  BlurSobelPipeline() builds a pipeline of numIterations blur passes and
+   *  a Sobel stage that writes its intensities into gray.
+   *
+   *  @param width the width of the image.
+   *  @param height the height of the image.
+   *  @param numIterations the number of blur passes, zero or more.
+   *  @param gray the output, width * height intensities row after row.
+   */
+  BlurSobelPipeline(int width, int height, int numIterations, byte[] gray) {
+    first = blurStages(width, height, numIterations, new SobelStage(width, height, gray, null));
+  }
+
+  /**
+   *  BlurSobelPipeline() builds a pipeline of numIterations blur passes,
+   *  followed by a Sobel stage if sobel is true, that writes its rows into
+   *  out.  This is how boxBlur() and blurSobelEdges() work on direct images
+   *  without heap copies of the image.
+   *
+   *  @param width the width of the image.
+   *  @param height the height of the image.
+   *  @param numIterations the number of blur passes, zero or more.
+   *  @param out the output, an image of the same size.
+   *  @param sobel true to write the edges of the blurred image.
+   */
+  BlurSobelPipeline(int width, int height, int numIterations, PixImage out,
+                    boolean sobel) {
+    Stage last = sobel ? new SobelStage(width, height, null, out)
+                       : new WriteStage(width, height, out);
+    first = blurStages(width, height, numIterations, last);
+  }
+
+  private static Stage blurStages(int width, int height, int numIterations, Stage last) {
+    Stage stage = last;
+    for (int n = 0; n < numIterations; n++) {
+      stage = new BlurStage(width, height, stage);
+    }
+    return stage;
+  }
+
+  /**
+   *  push() feeds the next row of the input image into the pipeline.  The
+   *  row is copied, so the caller may reuse it.
+   *
+   *  @param row the next row, as three planes.
+   */
+  void push(int[] row) {
+    first.push(row);
+  }
+
+  /**
+   *  finish() flushes the last rows once every row has been pushed.
+   */
+  void finish() {
+    first.finish();
+  }
+
+  private abstract static class Stage {
+    protected final int width;
+    protected final int height;
+    // rows y - 1, y and y + 1 of this stage's input live in ring[(y + 1) % 3] etc.
+    private final int[][] ring;
+    private int received;
+
+    Stage(int width, int height) {
+      this.width = width;
+      this.height = height;
+      this.ring = new int[3][3 * width];
+    }
+
+    void push(int[] row) {
+      System.arraycopy(row, 0, ring[received % 3], 0, 3 * width);
+      received++;
+      if (received >= 2) {
+        emit(received - 2);
+      }
+    }
+
+    void finish() {
+      if (received > 0) {
+        emit(received - 1);
+      }
+      done();
+    }
+
+    private void emit(int y) {
+      int[] above = y > 0 ? ring[(y - 1) % 3] : null;
+      int[] below = y < height - 1 ? ring[(y + 1) % 3] : null;
+      emit(y, above, ring[y % 3], below);
+    }
+
+    /**
+     *  emit() computes output row y from input rows y - 1, y and y + 1.  above
+     *  and below are null at the top and bottom of the image.
+     */
+    abstract void emit(int y, int[] above, int[] row, int[] below);
+
+    abstract void done();
+  }
+
+  private static class BlurStage extends Stage {
+    private final Stage next;
+    private final int[] sums;
+    private final int[] out;
+
+    BlurStage(int width, int height, Stage next) {
+      super(width, height);
+      this.next = next;
+      this.sums = new int[width];
+      this.out = new int[3 * width];
+    }
+
+    void emit(int y, int[] above, int[] row, int[] below) {
+      boolean edgeRow = y == 0 || y == height - 1;
+      for (int c = 0; c < 3; c++) {
+        int start = c * width;
+        // column sums first, then three of them side by side; the 3x3 sum is
+        // the same either way round
+        for (int i = 0; i < width; i++) {
+          int sum = row[start + i];
+          if (above != null) {
+            sum += above[start + i];
+          }
+          if (below != null) {
+            sum += below[start + i];
+          }
+          sums[i] = sum;
+        }
+        for (int i = 0; i < width; i++) {
+          int sum = sums[i];
+          if (i > 0) {
+            sum += sums[i - 1];
+          }
+          if (i < width - 1) {
+            sum += sums[i + 1];
+          }
+          out[start + i] = sum;
+        }
+        PixImage.divideRow(out, start, width, edgeRow);
+      }
+      next.push(out);
+    }
+
+    void done() {
+      next.finish();
+    }
+  }
+
+  private static class SobelStage extends Stage {
+    // the edges go into gray, or as gray pixels into out if gray is null
+    private final byte[] gray;
+    private final PixImage out;
+    private final int[] packed;
+
+    SobelStage(int width, int height, byte[] gray, PixImage out) {
+      super(width, height);
+      this.gray = gray;
+      this.out = out;
+      this.packed = gray == null ? new int[width] : null;
+    }
+
+    void emit(int y, int[] above, int[] row, int[] below) {
+      // off the image, the nearest edge row or column is mirrored
+      if (above == null) {
+        above = row;
+      }
+      if (below == null) {
+        below = row;
+      }
+      for (int i = 0; i < width; i++) {
+        int left = Math.max(i - 1, 0);
+        int right = Math.min(i + 1, width - 1);
+        int energy = 0;
+        for (int c = 0; c < 3 * width; c += width) {
+          int gx = above[c + left] - above[c + right] +
+                   2 * row[c + left] - 2 * row[c + right] +
+                   below[c + left] - below[c + right];
+          int gy = above[c + left] + 2 * above[c + i] + above[c + right] -
+                   below[c + left] - 2 * below[c + i] - below[c + right];
+          energy += gx * gx + gy * gy;
+        }
+        int g = PixImage.energy2gray(energy);
+        if (gray != null) {
+          gray[y * width + i] = (byte) g;
+        } else {
+          packed[i] = PixImage.pack(g, g, g);
+        }
+      }
+      if (gray == null) {
+        out.writeRow(y, packed, 0);
+      }
+    }
+
+    void done() {
+    }
+  }
+
+  private static class WriteStage extends Stage {
+    private final PixImage out;
+    private final int[] packed;
+    private int y;
+
+    WriteStage(int width, int height, PixImage out) {
+      super(width, height);
+      this.out = out;
+      this.packed = new int[width];
+    }
+
+    // rows go straight out; no neighbors are needed
+    void push(int[] row) {
+      for (int i = 0; i < width; i++) {
+        packed[i] = PixImage.pack(row[i], row[width + i], row[2 * width + i]);
+      }
+      out.writeRow(y++, packed, 0);
+    }
+
+    void finish() {
+    }
+
+    void emit(int y, int[] above, int[] row, int[] below) {
+    }
+
+    void done() {
+    }
+  }
+}
@@ -0,0 +1,352 @@
+/* ConvolutionKernel.java */
+
+import java.util.Arrays;
+
+/**
+ *  The ConvolutionKernel class describes a square integer filter for
+ *  PixImage.convolve(), such as a box blur, a Gaussian blur, a sharpening
+ *  filter, or one direction of the Sobel or Scharr operators.  Each output
+ *  intensity is the weighted sum of the neighboring input intensities,
+ *  divided by the divisor (rounded toward zero) and clamped to 0...255.
+ *  Each color is filtered separately.
+ *
+ *  A kernel whose weights are an outer product of a column and a row (a
+ *  "rank-1" kernel, like the box and Gaussian kernels) is detected when it
+ *  is constructed and applied as a horizontal pass followed by a vertical
+ *  pass, which costs 2k instead of k * k multiplies per pixel for a k x k
+ *  kernel.
+ */
+public class ConvolutionKernel {
+
+  /**
+   *  EdgeMode says how a kernel treats neighbors that fall off the image.
+   *
+   *  MIRROR uses the nearest pixel on the image edge instead, as
+   *  sobelEdges() does.  NEIGHBOR_COUNT leaves them out and divides by the
+   *  sum of the weights that remain instead of by the divisor, much as
+   *  boxBlur() does with its 4, 6 and 9 neighbors.  On an image at least two
+   *  pixels wide and tall, box(1) with NEIGHBOR_COUNT is boxBlur(1); on a
+   *  1 x N or N x 1 image it is not, because boxBlur() keeps dividing by 4
+   *  and 6 there although fewer neighbors exist.
+   */
+  public enum EdgeMode { MIRROR, NEIGHBOR_COUNT }
+
+  private int size;
+  private int radius;
+  private int[][] weights;
+  private int divisor;
+  private int weightSum;
+  // for a rank-1 kernel, weights[j][i] == column[j] * row[i]; otherwise null
+  private int[] row;
+  private int[] column;
+
+  /**
+   *  ConvolutionKernel() constructs a kernel from a square array of weights
+   *  with an odd side.  weights[j][i] is the weight of the neighbor i - r
+   *  pixels to the right and j - r pixels below, where r = weights.length / 2.
+   *  Note that this is the transpose of how the tests in PixImage write images.
+   *
+   *  @param weights the weights, row by row.
+   *  @param divisor the number that the weighted sums are divided by.
+   */
+  public ConvolutionKernel(int[][] weights, int divisor) {
+    size = weights.length;
+    if (size % 2 == 0 || divisor == 0) {
+      throw new IllegalArgumentException("kernel side must be odd and divisor nonzero");
+    }
+    radius = size / 2;
+    this.weights = new int[size][];
+    for (int j = 0; j < size; j++) {
+      if (weights[j].length != size) {
+        throw new IllegalArgumentException("kernel must be square");
+      }
+      this.weights[j] = weights[j].clone();
+      for (int i = 0; i < size; i++) {
+        weightSum += weights[j][i];
+      }
+    }
+    this.divisor = divisor;
+    factor();
+  }
+
+  /**
+   *  box() returns the (2 * radius + 1) square kernel of ones, divided by the
+   *  number of its weights.
+   *
+   *  @param radius how far the kernel reaches from its center.
+   *  @return a box blur kernel.
+   */
+  public static ConvolutionKernel box(int radius) {
+    int side = 2 * radius + 1;
+    int[][] w = new int[side][side];
+    for (int j = 0; j < side; j++) {
+      Arrays.fill(w[j], 1);
+    }
+    return new ConvolutionKernel(w, side * side);
+  }
+
+  /**
+   *  gaussian3() returns the 3x3 binomial approximation of a Gaussian blur.
+   *
+   *  @return a Gaussian blur kernel.
+   */
+  public static ConvolutionKernel gaussian3() {
+    return new ConvolutionKernel(new int[][] { { 1, 2, 1 },
+                                               { 2, 4, 2 },
+                                               { 1, 2, 1 } }, 16);
+  }
+
+  /**
+   *  sharpen() returns the 3x3 kernel that adds the difference between a
+   *  pixel and its four nearest neighbors to the pixel.
+   *
+   *  @return a sharpening kernel.
+   */
+  public static ConvolutionKernel sharpen() {
+    return new ConvolutionKernel(new int[][] { {  0, -1,  0 },
+                                               { -1,  5, -1 },
+                                               {  0, -1,  0 } }, 1);
+  }
+
+  /**
+   *  sobelX() returns the horizontal gradient kernel of the Sobel operator,
+   *  as used by sobelEdges().  Negative gradients clamp to zero.
+   *
+   *  @return a Sobel kernel.
+   */
+  public static ConvolutionKernel sobelX() {
+    return new ConvolutionKernel(new int[][] { { 1, 0, -1 },
+                                               { 2, 0, -2 },
+                                               { 1, 0, -1 } }, 1);
+  }
+
+  /**
+   *  scharrX() returns the horizontal gradient kernel of the Scharr operator,
+   *  which is more nearly rotation invariant than Sobel's.  Negative
+   *  gradients clamp to zero.
+   *
+   *  @return a Scharr kernel.
+   */
+  public static ConvolutionKernel scharrX() {
+    return new ConvolutionKernel(new int[][] { {  3, 0,  -3 },
+                                               { 10, 0, -10 },
+                                               {  3, 0,  -3 } }, 1);
+  }
+
+  /**
+   *  isSeparable() returns true if this kernel is applied as two 1-D passes.
+   *
+   *  @return true if the weights are the product of a column and a row.
+   */
+  public boolean isSeparable() {
+    return row != null;
+  }
+
+  /**
+   *  getRadius() returns how far this kernel reaches from its center.
+   *
+   *  @return the radius of the kernel.
+   */
+  public int getRadius() {
+    return radius;
+  }
+
+  /*
+  factor finds integer vectors column and row with weights[j][i] == column[j] * row[i], if any
+   */
+  private void factor() {
+    int base = -1;
+    for (int j = 0; j < size && base < 0; j++) {
+      for (int i = 0; i < size; i++) {
+        if (weights[j][i] != 0) {
+          base = j;
+          break;
+        }
+      }
+    }
+    if (base < 0) {
+      return;
+    }
+    // the first nonzero row, divided by the gcd of its entries, is the row vector
+    int g = 0;
+    for (int i = 0; i < size; i++) {
+      g = gcd(g, Math.abs(weights[base][i]));
+    }
+    int[] r = new int[size];
+    int pivot = -1;
+    for (int i = 0; i < size; i++) {
+      r[i] = weights[base][i] / g;
+      if (pivot < 0 && r[i] != 0) {
+        pivot = i;
+      }
+    }
+    int[] c = new int[size];
+    for (int j = 0; j < size; j++) {
+      if (weights[j][pivot] % r[pivot] != 0) {
+        return;
+      }
+      c[j] = weights[j][pivot] / r[pivot];
+      for (int i = 0; i < size; i++) {
+        if (weights[j][i] != c[j] * r[i]) {
+          return;
+        }
+      }
+    }
+    row = r;
+    column = c;
+  }
+
+  private static int gcd(int a, int b) {
+    while (b != 0) {
+      int t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  }
+
+  /*
+  finish divides a weighted sum and clamps it to 0...255
+   */
+  private static int finish(long sum, long divisor) {
+    long value = sum / divisor;
+    return value < 0 ? 0 : value > 255 ? 255 : (int) value;
+  }
+
+  /*
+  checkMode rejects NEIGHBOR_COUNT for kernels whose weights cancel out
+   */
+  void checkMode(EdgeMode mode) {
+    if (mode == EdgeMode.NEIGHBOR_COUNT && weightSum == 0) {
+      throw new IllegalArgumentException("NEIGHBOR_COUNT needs weights with a nonzero sum");
+    }
+  }
+
+  /**
+   *  rowPass() applies the row vector of a separable kernel along rows
+   *  fromRow...toRow - 1 of each width x height plane in src, into dst.
+   *  The sums are kept as longs, since large weights overflow an int.
+   */
+  void rowPass(int[] src, long[] dst, int width, int height,
+               int fromRow, int toRow, EdgeMode mode) {
+    int planeSize = width * height;
+    for (int c = 0; c < 3; c++) {
+      for (int j = fromRow; j < toRow; j++) {
+        int start = c * planeSize + j * width;
+        for (int i = 0; i < width; i++) {
+          long sum = 0;
+          if (i >= radius && i + radius < width) {
+            for (int k = 0; k < size; k++) {
+              sum += (long) row[k] * src[start + i - radius + k];
+            }
+          } else {
+            for (int k = 0; k < size; k++) {
+              int x = i - radius + k;
+              if (x >= 0 && x < width) {
+                sum += (long) row[k] * src[start + x];
+              } else if (mode == EdgeMode.MIRROR) {
+                sum += (long) row[k] * src[start + (x < 0 ? 0 : width - 1)];
+              }
+            }
+          }
+          dst[start + i] = sum;
+        }
+      }
+    }
+  }
+
+  /**
+   *  columnPass() applies the column vector of a separable kernel down rows
+   *  fromRow...toRow - 1 of the row sums in src and writes the finished
+   *  intensities into dst.
+   */
+  void columnPass(long[] src, int[] dst, int width, int height,
+                  int fromRow, int toRow, EdgeMode mode) {
+    int planeSize = width * height;
+    // the part of the row vector that lands inside the image, for each column
+    int[] rowIn = new int[width];
+    for (int i = 0; i < width; i++) {
+      for (int k = 0; k < size; k++) {
+        int x = i - radius + k;
+        if (x >= 0 && x < width) {
+          rowIn[i] += row[k];
+        }
+      }
+    }
+    for (int c = 0; c < 3; c++) {
+      for (int j = fromRow; j < toRow; j++) {
+        int start = c * planeSize + j * width;
+        int columnIn = 0;
+        for (int k = 0; k < size; k++) {
+          int y = j - radius + k;
+          if (y >= 0 && y < height) {
+            columnIn += column[k];
+          }
+        }
+        for (int i = 0; i < width; i++) {
+          long sum = 0;
+          for (int k = 0; k < size; k++) {
+            int y = j - radius + k;
+            if (y < 0 || y >= height) {
+              if (mode != EdgeMode.MIRROR) {
+                continue;
+              }
+              y = y < 0 ? 0 : height - 1;
+            }
+            sum += (long) column[k] * src[c * planeSize + y * width + i];
+          }
+          long div = divisor;
+          if (mode == EdgeMode.NEIGHBOR_COUNT) {
+            div = (long) rowIn[i] * columnIn;
+            if (div == 0) {
+              div = weightSum;
+            }
+          }
+          dst[start + i] = finish(sum, div);
+        }
+      }
+    }
+  }
+
+  /**
+   *  directPass() applies a kernel that is not separable to rows
+   *  fromRow...toRow - 1 of the planes in src and writes the finished
+   *  intensities into dst.
+   */
+  void directPass(int[] src, int[] dst, int width, int height,
+                  int fromRow, int toRow, EdgeMode mode) {
+    int planeSize = width * height;
+    for (int c = 0; c < 3; c++) {
+      for (int j = fromRow; j < toRow; j++) {
+        for (int i = 0; i < width; i++) {
+          long sum = 0;
+          long weightIn = 0;
+          for (int dj = 0; dj < size; dj++) {
+            int y = j - radius + dj;
+            boolean offY = y < 0 || y >= height;
+            if (offY && mode != EdgeMode.MIRROR) {
+              continue;
+            }
+            y = Math.min(Math.max(y, 0), height - 1);
+            for (int di = 0; di < size; di++) {
+              int x = i - radius + di;
+              if (x < 0 || x >= width) {
+                if (mode != EdgeMode.MIRROR) {
+                  continue;
+                }
+                x = x < 0 ? 0 : width - 1;
+              }
+              sum += (long) weights[dj][di] * src[c * planeSize + y * width + x];
+              weightIn += weights[dj][di];
+            }
+          }
+          long div = divisor;
+          if (mode == EdgeMode.NEIGHBOR_COUNT) {
+            div = weightIn != 0 ? weightIn : weightSum;
+          }
+          dst[c * planeSize + j * width + i] = finish(sum, div);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/* GrayImage.java */
+
+/**
+ *  The GrayImage class represents a grayscale image, such as the output of
+ *  edge detection, with one intensity in the range 0...255 per pixel.  It
+ *  stores one byte per pixel, rows one after another, so it takes a quarter
+ *  of the memory of a PixImage of the same size.  Pixels are numbered in the
+ *  range (0...width - 1, 0...height - 1).
+ */
+public class GrayImage {
+
+  private int width;
+  private int height;
+  // one unsigned intensity per pixel, rows stored one after another
+  private byte[] gray;
+
+  /**
+   * GrayImage() constructs a black GrayImage with a specified width and
+   * height.
+   *
+   * @param width the width of the image.
+   * @param height the height of the image.
+   * @throws IllegalArgumentException if the image has more than
+   * Integer.MAX_VALUE pixels, the most one array holds.
+   */
+  public GrayImage(int width, int height) {
+    this.width = width;
+    this.height = height;
+    try {
+      this.gray = new byte[Math.multiplyExact(width, height)];
+    } catch (ArithmeticException e) {
+      throw new IllegalArgumentException("a GrayImage holds at most " +
+          Integer.MAX_VALUE + " pixels, not " + (long) width * height);
+    }
+  }
+
+  /**
+   * getWidth() returns the width of the image.
+   *
+   * @return the width of the image.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * getHeight() returns the height of the image.
+   *
+   * @return the height of the image.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * getGray() returns the intensity of the pixel at coordinate (x, y).
+   *
+   * @param x the x-coordinate of the pixel.
+   * @param y the y-coordinate of the pixel.
+   * @return the intensity of the pixel at coordinate (x, y).
+   */
+  public short getGray(int x, int y) {
+    return (short) (gray[y * width + x] & 0xFF);
+  }
+
+  /**
+   * setGray() sets the pixel at coordinate (x, y) to the specified intensity.
+   * If the intensity is NOT in the range 0...255, the pixel is not changed.
+   *
+   * @param x the x-coordinate of the pixel.
+   * @param y the y-coordinate of the pixel.
+   * @param intensity the new intensity for the pixel at coordinate (x, y).
+   */
+  public void setGray(int x, int y, short intensity) {
+    if (intensity < 0 || intensity > 255) {
+      return;
+    }
+    gray[y * width + x] = (byte) intensity;
+  }
+
+  /**
+   * data() returns the intensities, row after row, without copying them.
+   *
+   * @return the backing array of this GrayImage.
+   */
+  byte[] data() {
+    return gray;
+  }
+
+  /**
+   * toPixImage() converts this GrayImage into a PixImage whose red, green,
+   * and blue intensities all equal the gray intensity.
+   *
+   * @return a new PixImage with the same pixels as this GrayImage.
+   */
+  public PixImage toPixImage() {
+    PixImage image = new PixImage(width, height);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int g = gray[y * width + x] & 0xFF;
+        image.setRGB(x, y, PixImage.pack(g, g, g));
+      }
+    }
+    return image;
+  }
+
+  /**
+   * toString() returns a String representation of this GrayImage.
+   *
+   * @return a String representation of this GrayImage.
+   */
+  public String toString() {
+    StringBuilder image = new StringBuilder();
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        image.append("[" + getGray(x, y) + "] ");
+      }
+      image.append("\n");
+    }
+    return image.toString();
+  }
+}
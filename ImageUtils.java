@@ -8,13 +8,35 @@
  *  @author Joel Galenson
  **/
 
-import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.color.ColorSpace;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.awt.image.renderable.ParameterBlock;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 import javax.media.jai.JAI;
 import javax.media.jai.RenderedImageAdapter;
+import javax.media.jai.RenderedOp;
 import javax.swing.Box;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
@@ -27,43 +49,156 @@ import javax.swing.JLabel;
  *  read them.
  * 
  *  All image data is in RGB format (see BufferedImage.getRGB).
+ *
+ *  A PixImage and a TYPE_INT_RGB BufferedImage store pixels the same way,
+ *  one 0x00RRGGBB int per pixel, rows one after another, so conversions
+ *  between them share the int array instead of copying it where they can.
+ *  Images of interleaved 8-bit RGB or RGBA bytes, which is what TIFF
+ *  decoders usually produce, are packed straight from their bytes.  Other
+ *  conversions go through BufferedImage.getRGB() a whole row range at a
+ *  time.  All copies run in parallel for large images (see RowBands).
  */
 public class ImageUtils {
 
   /**
-   *  buffer2PixImage() converts a BufferedImage to a PixImage.
+   *  buffer2PixImage() converts a BufferedImage to a PixImage.  If the
+   *  BufferedImage is a plain TYPE_INT_RGB image, the PixImage shares its
+   *  pixels, so changes to either show in the other.  Interleaved 8-bit RGB
+   *  or RGBA bytes are packed without going through the color model; any
+   *  alpha is dropped.
    *  @param bImage the image to convert.
    *  @return a PixImage with the same pixels as the BufferedImage.
    */
   private static PixImage buffer2PixImage(BufferedImage bImage) {
-    PixImage pImage = new PixImage(bImage.getWidth(), bImage.getHeight());
-    for (int x = 0; x < bImage.getWidth(); x++) {
-      for (int y = 0; y < bImage.getHeight(); y++) {
-        Color color = new Color(bImage.getRGB(x, y));
-        pImage.setPixel(x, y, (short) color.getRed(), (short) color.getGreen(),
-                        (short) color.getBlue());
+    int width = bImage.getWidth();
+    int height = bImage.getHeight();
+    int[] shared = sharedPixels(bImage);
+    if (shared != null) {
+      return PixImage.wrap(width, height, shared);
+    }
+    int[] pixels = new int[width * height];
+    if (packBytes(bImage, pixels)) {
+      return PixImage.wrap(width, height, pixels);
+    }
+    RowBands.run(height, width, (fromRow, toRow) -> {
+      bImage.getRGB(0, fromRow, width, toRow - fromRow, pixels, fromRow * width,
+                    width);
+      // drop the alpha that getRGB() adds
+      for (int i = fromRow * width; i < toRow * width; i++) {
+        pixels[i] &= 0xFFFFFF;
       }
+    });
+    return PixImage.wrap(width, height, pixels);
+  }
+
+  /**
+   *  sharedPixels() returns the int array behind a TYPE_INT_RGB image whose
+   *  pixels are stored exactly as a PixImage stores them, or null.
+   *  @param bImage the image to look into.
+   *  @return the pixels of the image, or null if it is stored differently.
+   */
+  private static int[] sharedPixels(BufferedImage bImage) {
+    if (bImage.getType() != BufferedImage.TYPE_INT_RGB) {
+      return null;
+    }
+    WritableRaster raster = bImage.getRaster();
+    DataBuffer buffer = raster.getDataBuffer();
+    if (!(buffer instanceof DataBufferInt) || buffer.getNumBanks() != 1 ||
+        buffer.getOffset() != 0 ||
+        !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel) ||
+        raster.getSampleModelTranslateX() != 0 ||
+        raster.getSampleModelTranslateY() != 0) {
+      return null;
+    }
+    SinglePixelPackedSampleModel model =
+        (SinglePixelPackedSampleModel) raster.getSampleModel();
+    int[] pixels = ((DataBufferInt) buffer).getData();
+    if (model.getScanlineStride() != bImage.getWidth() ||
+        pixels.length != bImage.getWidth() * bImage.getHeight()) {
+      return null;
     }
-    return pImage;
+    return pixels;
+  }
+
+  /**
+   *  packBytes() packs the pixels of an image stored as interleaved 8-bit
+   *  sRGB samples, with or without a (non-premultiplied) alpha sample, into
+   *  pixels, reading the bytes directly.  Samples may be in any order, so
+   *  RGB, BGR and ABGR layouts all qualify.
+   *  @param bImage the image to read.
+   *  @param pixels the output, width * height packed pixels.
+   *  @return true if the image was packed, or false if it is stored some
+   *  other way and nothing was written.
+   */
+  private static boolean packBytes(BufferedImage bImage, int[] pixels) {
+    WritableRaster raster = bImage.getRaster();
+    DataBuffer buffer = raster.getDataBuffer();
+    ColorModel model = bImage.getColorModel();
+    if (!(buffer instanceof DataBufferByte) || buffer.getNumBanks() != 1 ||
+        !(raster.getSampleModel() instanceof PixelInterleavedSampleModel) ||
+        !(model instanceof ComponentColorModel) ||
+        !model.getColorSpace().isCS_sRGB() || model.isAlphaPremultiplied() ||
+        model.getNumColorComponents() != 3 ||
+        (raster.getNumBands() != 3 && raster.getNumBands() != 4)) {
+      return false;
+    }
+    for (int b = 0; b < raster.getNumBands(); b++) {
+      if (model.getComponentSize(b) != 8) {
+        return false;
+      }
+    }
+    PixelInterleavedSampleModel samples =
+        (PixelInterleavedSampleModel) raster.getSampleModel();
+    byte[] data = ((DataBufferByte) buffer).getData();
+    int width = bImage.getWidth();
+    int stride = samples.getPixelStride();
+    int scanline = samples.getScanlineStride();
+    int[] bands = samples.getBandOffsets();
+    int red = bands[0];
+    int green = bands[1];
+    int blue = bands[2];
+    // where pixel (0, 0) of the image starts in data
+    int origin = buffer.getOffset() - raster.getSampleModelTranslateY() * scanline -
+                 raster.getSampleModelTranslateX() * stride;
+    RowBands.run(bImage.getHeight(), width, (fromRow, toRow) -> {
+      for (int y = fromRow; y < toRow; y++) {
+        int at = origin + y * scanline;
+        for (int x = 0; x < width; x++, at += stride) {
+          pixels[y * width + x] = PixImage.pack(data[at + red] & 0xFF,
+                                                data[at + green] & 0xFF,
+                                                data[at + blue] & 0xFF);
+        }
+      }
+    });
+    return true;
   }
 
   /**
-   *  pixImage2buffer() converts a PixImage to a BufferedImage.
+   *  pixImage2buffer() converts a PixImage to a TYPE_INT_RGB BufferedImage.
+   *  The BufferedImage shares the pixels of an on-heap PixImage, so this
+   *  costs no copying; the pixels of a direct PixImage are copied.
    *  @param pImage the image to convert.
    *  @return a BufferedImage with the same pixels as the PixImage.
    */
   static BufferedImage pixImage2buffer(PixImage pImage) {
-    BufferedImage bImage = new BufferedImage(pImage.getWidth(),
-                                             pImage.getHeight(),
-                                             BufferedImage.TYPE_INT_ARGB);
-    for (int x = 0; x < bImage.getWidth(); x++) {
-      for (int y = 0; y < bImage.getHeight(); y++) {
-        bImage.setRGB(x, y, new Color(pImage.getRed(x, y),
-                                      pImage.getGreen(x, y),
-                                      pImage.getBlue(x, y)).getRGB());
-      }
+    int width = pImage.getWidth();
+    int height = pImage.getHeight();
+    int[] pixels = pImage.array();
+    if (pixels == null) {
+      int[] copy = new int[width * height];
+      RowBands.run(height, width, (fromRow, toRow) -> {
+        for (int y = fromRow; y < toRow; y++) {
+          pImage.readRow(y, copy, y * width);
+        }
+      });
+      pixels = copy;
     }
-    return bImage;
+    int[] masks = { 0xFF0000, 0xFF00, 0xFF };
+    WritableRaster raster =
+        Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length),
+                                  width, height, width, masks, null);
+    return new BufferedImage(new DirectColorModel(24, masks[0], masks[1], masks[2]),
+                             raster, false, null);
   }
 
   /**
@@ -87,12 +222,66 @@ public class ImageUtils {
 
   /**
    *  readTIFFRLE() reads an image from a file and formats it as a run-length
-   *  encoding.
+   *  encoding.  A PackBits or uncompressed TIFF is turned straight into runs
+   *  (see PackBitsTiff).  Any other image is pulled from the decoder one
+   *  strip of rows at a time and each strip is encoded as it arrives.  The
+   *  image is loaded without a tile cache, so decoded tiles are dropped once
+   *  copied: memory use is the runs, one strip, and the decoder tile the
+   *  strip came from.  JAI decodes a whole tile at once, and an untiled TIFF
+   *  has one tile per TIFF strip, so a file written as a single strip is
+   *  still decoded in full.
    *  @param filename the name of the file to read.
    *  @return a RunLengthEncoding of the file.
    */
   public static RunLengthEncoding readTIFFRLE(String filename) {
-    return new RunLengthEncoding(readTIFFPix(filename));
+    RunLengthEncoding packed = PackBitsTiff.read(filename);
+    if (packed != null) {
+      return packed;
+    }
+    ParameterBlock load = new ParameterBlock();
+    load.add(filename);
+    // JAI's default tile cache would keep every decoded tile, which is the
+    // whole image by the last strip; an empty cache keeps none
+    RenderingHints noCache = new RenderingHints(JAI.KEY_TILE_CACHE,
+                                                JAI.createTileCache(0L));
+    RenderedOp source = JAI.create("fileload", load, noCache);
+    try {
+      int width = source.getWidth();
+      int height = source.getHeight();
+      // a strip is the decoder's own tile height, but at most about a
+      // million pixels
+      int stripRows = Math.max(1, Math.min(source.getTileHeight(),
+                                           (1 << 20) / Math.max(width, 1)));
+      stripRows = Math.min(stripRows, Math.max(height, 1));
+      RunStore runs = new RunStore(width, height);
+      RunEncoder strip = new RunEncoder();
+      // each strip is copied into one reusable raster at (0, 0), so the
+      // color model can convert it in bulk
+      WritableRaster stripRaster = Raster.createWritableRaster(
+          source.getSampleModel().createCompatibleSampleModel(width, stripRows),
+          null);
+      BufferedImage stripImage =
+          new BufferedImage(source.getColorModel(), stripRaster,
+                            source.getColorModel().isAlphaPremultiplied(), null);
+      int[] rgb = new int[width * stripRows];
+      for (int y = 0; y < height; y += stripRows) {
+        int rows = Math.min(stripRows, height - y);
+        Raster data = source.getData(new Rectangle(source.getMinX(),
+                                                   source.getMinY() + y,
+                                                   width, rows));
+        stripRaster.setRect(-data.getMinX(), -data.getMinY(), data);
+        stripImage.getRGB(0, 0, width, rows, rgb, 0, width);
+        for (int i = 0; i < width * rows; i++) {
+          rgb[i] &= 0xFFFFFF;
+        }
+        strip.clear();
+        strip.add(rgb, 0, width * rows);
+        strip.appendTo(runs);
+      }
+      return new RunLengthEncoding(width, height, runs);
+    } finally {
+      source.dispose();
+    }
   }
 
   /**
@@ -115,12 +304,15 @@ public class ImageUtils {
 
   /**
    *  writeTIFF() writes a run-length encoding to a specified file in TIFF
-   *  format.
+   *  format, compressed with PackBits, or uncompressed if PackBits would not
+   *  make it smaller, as happens with images of mostly non-gray runs.  The
+   *  file is written straight from the runs, without decoding the image (see
+   *  PackBitsTiff).
    *  @param rle the input run-length encoded image.
    *  @param filename the output filename.
    */
   public static void writeTIFF(RunLengthEncoding rle, String filename) {
-    writeTIFF(rle.toPixImage(), filename);
+    PackBitsTiff.write(rle, filename);
   }
 
   /**
@@ -176,4 +368,182 @@ public class ImageUtils {
   public static void displayTIFF(PixImage image) {
     displayTIFFs(new PixImage[] { image });
   }
+
+  /**
+   * TEST CODE
+   */
+
+  /**
+   * doTest() checks whether the condition is true and prints the given error
+   * message if it is not.
+   *
+   * @param b the condition to check.
+   * @param msg the error message to print if the condition is false.
+   */
+  private static void doTest(boolean b, String msg) {
+    if (b) {
+      System.out.println("Good.");
+    } else {
+      System.err.println(msg);
+    }
+  }
+
+  /**
+   * fill() sets every pixel of a BufferedImage to the matching pixel of a
+   * PixImage, through the raster's samples so that no color conversion
+   * happens.  Samples are written red, green, blue and then opaque alpha.
+   *
+   * @param bImage the image to fill.
+   * @param image the pixels to fill it with.
+   * @return bImage.
+   */
+  private static BufferedImage fill(BufferedImage bImage, PixImage image) {
+    WritableRaster raster = bImage.getRaster();
+    int[] samples = new int[raster.getNumBands()];
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        samples[0] = image.getRed(x, y);
+        samples[1] = image.getGreen(x, y);
+        samples[2] = image.getBlue(x, y);
+        if (samples.length == 4) {
+          samples[3] = 255;
+        }
+        raster.setPixel(x, y, samples);
+      }
+    }
+    return bImage;
+  }
+
+  /**
+   * sameRGB() returns true if a BufferedImage has the pixels of a PixImage.
+   *
+   * @param bImage the BufferedImage.
+   * @param image the PixImage.
+   * @return true if every pixel matches.
+   */
+  private static boolean sameRGB(BufferedImage bImage, PixImage image) {
+    if (bImage.getWidth() != image.getWidth() ||
+        bImage.getHeight() != image.getHeight()) {
+      return false;
+    }
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        if ((bImage.getRGB(x, y) & 0xFFFFFF) != image.getRGB(x, y)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * main() runs a series of tests of the conversions between BufferedImages
+   * and PixImages.
+   */
+  public static void main(String[] args) {
+    int width = 37;
+    int height = 23;
+    PixImage image = new PixImage(width, height);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        image.setPixel(x, y, (short) (7 * x), (short) ((x * y) % 256),
+                       (short) (255 - 11 * y));
+      }
+    }
+
+    System.out.println("Testing buffer2PixImage() on a TYPE_INT_RGB image.");
+    BufferedImage ints = fill(new BufferedImage(width, height,
+                                                BufferedImage.TYPE_INT_RGB), image);
+    PixImage fromInts = buffer2PixImage(ints);
+    ints.setRGB(3, 4, 0x123456);
+    doTest(fromInts.getRGB(3, 4) == 0x123456 && sameRGB(ints, fromInts),
+           "buffer2PixImage() does not share a TYPE_INT_RGB image's pixels.");
+    ints.setRGB(3, 4, image.getRGB(3, 4));
+
+    System.out.println("Testing buffer2PixImage() on byte-interleaved images.");
+    BufferedImage bgr = fill(new BufferedImage(width, height,
+                                               BufferedImage.TYPE_3BYTE_BGR), image);
+    BufferedImage abgr = fill(new BufferedImage(width, height,
+                                                BufferedImage.TYPE_4BYTE_ABGR), image);
+    // the layout TIFF decoders produce: red, green, blue in that order
+    ColorModel rgbModel =
+        new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                                false, false, ColorModel.OPAQUE, DataBuffer.TYPE_BYTE);
+    BufferedImage rgb =
+        fill(new BufferedImage(rgbModel,
+                               Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE,
+                                                              width, height, 3, null),
+                               false, null), image);
+    // a window into a bigger image, whose raster starts partway into its bytes
+    BufferedImage big = new BufferedImage(width + 9, height + 5,
+                                          BufferedImage.TYPE_3BYTE_BGR);
+    BufferedImage window = fill(big.getSubimage(6, 4, width, height), image);
+    doTest(buffer2PixImage(bgr).equals(image) && buffer2PixImage(abgr).equals(image) &&
+           buffer2PixImage(rgb).equals(image) && buffer2PixImage(window).equals(image),
+           "buffer2PixImage() misreads a byte-interleaved image.");
+
+    System.out.println("Testing buffer2PixImage() on a TYPE_INT_ARGB image.");
+    BufferedImage argb = fill(new BufferedImage(width, height,
+                                                BufferedImage.TYPE_INT_ARGB), image);
+    doTest(buffer2PixImage(argb).equals(image),
+           "buffer2PixImage() misreads a TYPE_INT_ARGB image.");
+
+    System.out.println("Testing pixImage2buffer() on heap and direct images.");
+    PixImage direct = PixImage.allocateDirect(width, height, 5);
+    for (int y = 0; y < height; y++) {
+      direct.rowBuffer(y).put(image.rowBuffer(y));
+    }
+    BufferedImage fromHeap = pixImage2buffer(image);
+    doTest(sameRGB(fromHeap, image) && sameRGB(pixImage2buffer(direct), image) &&
+           buffer2PixImage(fromHeap).equals(image) &&
+           buffer2PixImage(pixImage2buffer(direct)).equals(image),
+           "pixImage2buffer() round trip fails.");
+
+    System.out.println("Testing readTIFFRLE() on a multi-strip LZW TIFF.");
+    // 600 bytes a row, so ImageIO's 8K strips split it into a dozen strips
+    PixImage striped = new PixImage(200, 150);
+    for (int y = 0; y < 150; y++) {
+      for (int x = 0; x < 200; x++) {
+        int shade = (x / 9 + y / 5) % 3 == 0 ? 40 : (x * y) % 256;
+        striped.setPixel(x, y, (short) shade, (short) (y % 256),
+                         (short) (x / 13 * 17));
+      }
+    }
+    File file = null;
+    try {
+      file = File.createTempFile("striped", ".tif");
+      writeLZW(fill(new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB),
+                    striped), file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    RunLengthEncoding fromStrips = readTIFFRLE(file.getPath());
+    doTest(PackBitsTiff.read(file.getPath()) == null &&
+           fromStrips.getWidth() == 200 && fromStrips.getHeight() == 150 &&
+           fromStrips.toPixImage().equals(readTIFFPix(file.getPath())) &&
+           fromStrips.toPixImage().equals(striped),
+           "readTIFFRLE() and readTIFFPix() disagree on an LZW TIFF.");
+    file.delete();
+  }
+
+  /**
+   * writeLZW() writes an image as an LZW-compressed TIFF using ImageIO, so
+   * that PackBitsTiff cannot read it.
+   *
+   * @param image the image to write.
+   * @param file the file to write.
+   */
+  private static void writeLZW(BufferedImage image, File file) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionType("LZW");
+    file.delete();
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+      writer.setOutput(out);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+  }
 }
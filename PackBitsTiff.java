@@ -0,0 +1,569 @@
+/* PackBitsTiff.java */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  The PackBitsTiff class writes a RunLengthEncoding as a baseline TIFF file
+ *  compressed with PackBits, the run-length compression that TIFF readers
+ *  all support, straight from the runs and without decoding the image.  It
+ *  also reads such files straight into runs.
+ *
+ *  The file holds 8-bit RGB samples, interleaved (R, G, B, R, G, B, ...), in
+ *  strips of about 8K uncompressed bytes.  PackBits packs each row of a strip
+ *  separately into packets: a replicate packet repeats one byte 2...128
+ *  times, and a literal packet copies 1...128 bytes.  A run of gray pixels
+ *  (red == green == blue) is one repeated byte, so it becomes replicate
+ *  packets; a run of any other color becomes literal bytes.  Only one strip
+ *  is held in memory at a time.
+ *
+ *  A color run costs three bytes a pixel plus packet headers, so an image
+ *  with few gray runs packs to more than its raw size.  write() therefore
+ *  packs the image once without writing it, and if PackBits does not save
+ *  space it writes the samples uncompressed (Compression = 1) instead.  That
+ *  pre-scan costs a second pass over the runs, but never the pixels of the
+ *  whole image at once.
+ *
+ *  read() turns the packets of a PackBits TIFF back into runs.  A replicate
+ *  packet that covers whole pixels becomes one gray run without looking at
+ *  the pixels one by one, and runs are merged across packet, row and strip
+ *  boundaries, so the time taken grows with the size of the compressed data
+ *  rather than with the number of pixels.  It reads 8-bit RGB images (with
+ *  or without an extra alpha sample, which is dropped) and 8-bit grayscale
+ *  images.  It also reads uncompressed files, such as the ones write() makes
+ *  when PackBits does not pay, a strip at a time.
+ */
+class PackBitsTiff {
+
+  private static final int COMPRESSION_NONE = 1;
+  private static final int COMPRESSION_PACKBITS = 32773;
+  private static final int PHOTOMETRIC_WHITE_IS_ZERO = 0;
+  private static final int PHOTOMETRIC_BLACK_IS_ZERO = 1;
+  private static final int PHOTOMETRIC_RGB = 2;
+  // the uncompressed size of a strip that the TIFF specification recommends
+  private static final int STRIP_BYTES = 8192;
+
+  // TIFF field types
+  private static final short SHORT = 3;
+  private static final short LONG = 4;
+  private static final short RATIONAL = 5;
+  // the number of entries in the image file directory
+  private static final int ENTRIES = 13;
+
+  /**
+   *  write() writes a run-length encoding to a file as a PackBits TIFF, or as
+   *  an uncompressed TIFF if PackBits would make the file bigger.  TIFF
+   *  offsets are 32 bits, so a file that would pass 4GB is not written.
+   *
+   *  @param rle the image to write.
+   *  @param filename the output filename.
+   *  @throws UncheckedIOException if the file cannot be written or would
+   *  pass 4GB.
+   */
+  static void write(RunLengthEncoding rle, String filename) {
+    int width = rle.getWidth();
+    int height = rle.getHeight();
+    int rowBytes = 3 * width;
+    int rowsPerStrip = Math.max(1, Math.min(height, STRIP_BYTES / Math.max(rowBytes, 1)));
+    int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+    int[] stripOffsets = new int[strips];
+    int[] stripCounts = new int[strips];
+    // the worst case adds a header byte for every 128 literal bytes, and one
+    // more at the start of a row
+    Packer packer = new Packer(rowsPerStrip * (rowBytes + (rowBytes + 127) / 128 + 1));
+    // pack every strip once to learn whether PackBits beats the raw samples
+    long packed = 0;
+    Rows rows = new Rows(rle);
+    for (int s = 0; s < strips; s++) {
+      packer.clear();
+      rows.next(Math.min(rowsPerStrip, height - s * rowsPerStrip), packer);
+      packed += (packer.size() + 1) & ~1;
+    }
+    boolean compress = packed < (long) rowBytes * height;
+    packer.setCompress(compress);
+    try (FileChannel out = FileChannel.open(Paths.get(filename),
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.TRUNCATE_EXISTING,
+                                            StandardOpenOption.WRITE)) {
+      long position = 8;
+      out.position(position);
+      rows = new Rows(rle);
+      for (int s = 0; s < strips; s++) {
+        packer.clear();
+        rows.next(Math.min(rowsPerStrip, height - s * rowsPerStrip), packer);
+        stripOffsets[s] = unsigned(position);
+        stripCounts[s] = packer.size();
+        // keep every strip on a word boundary
+        int padded = (packer.size() + 1) & ~1;
+        packer.bytes()[packer.size()] = 0;
+        ByteBuffer strip = ByteBuffer.wrap(packer.bytes(), 0, padded);
+        while (strip.hasRemaining()) {
+          out.write(strip);
+        }
+        position += padded;
+      }
+      // the offsets inside the trailer are its base plus less than its size,
+      // so they fit in 32 bits if the end of the file does
+      ByteBuffer trailer = trailer(width, height, rowsPerStrip, stripOffsets,
+                                   stripCounts, unsigned(position),
+                                   compress ? COMPRESSION_PACKBITS : COMPRESSION_NONE);
+      unsigned(position + trailer.limit());
+      while (trailer.hasRemaining()) {
+        out.write(trailer);
+      }
+      // the header comes last, once the directory's place is known
+      ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      header.put((byte) 'I').put((byte) 'I').putShort((short) 42);
+      header.putInt(unsigned(position + trailer.limit() - directorySize()));
+      header.flip();
+      out.position(0);
+      while (header.hasRemaining()) {
+        out.write(header);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /*
+  unsigned returns the low 32 bits of a file position, which TIFF stores as an
+  unsigned LONG, or fails if the position does not fit
+   */
+  private static int unsigned(long position) throws IOException {
+    if (position > 0xFFFFFFFFL) {
+      throw new IOException("a TIFF file is limited to 4GB, but this one " +
+                            "reaches " + position + " bytes");
+    }
+    return (int) position;
+  }
+
+  /**
+   *  The Rows class walks the runs of an encoding row by row, cutting them at
+   *  the end of each row, since rows are packed separately.
+   */
+  private static class Rows {
+    private final RunIterator runs;
+    private final int width;
+    // what is left of the current run, and its color
+    private int left;
+    private int rgb;
+
+    Rows(RunLengthEncoding rle) {
+      runs = rle.iterator();
+      width = rle.getWidth();
+    }
+
+    /*
+    next passes the next count rows to packer
+     */
+    void next(int count, Packer packer) {
+      for (int y = 0; y < count; y++) {
+        for (int x = 0; x < width; ) {
+          if (left == 0) {
+            runs.advance();
+            left = runs.runLength();
+            rgb = runs.rgb();
+          }
+          int n = Math.min(left, width - x);
+          packer.pixels(rgb, n);
+          x += n;
+          left -= n;
+        }
+        packer.endRow();
+      }
+    }
+  }
+
+  /**
+   *  read() reads a PackBits TIFF file straight into a run-length encoding.
+   *  Only the first image of the file is read.
+   *
+   *  @param filename the name of the file to read.
+   *  @return the image as a RunLengthEncoding, or null if the file is not a
+   *  TIFF that read() understands (for instance, if it uses a compression
+   *  other than PackBits or none), so the caller can fall back on a general TIFF reader.
+   *  @throws UncheckedIOException if the file cannot be read or is damaged.
+   */
+  static RunLengthEncoding read(String filename) {
+    try (FileChannel in = FileChannel.open(Paths.get(filename),
+                                           StandardOpenOption.READ)) {
+      // one mapping holds at most 2GB; leave bigger files to the general reader
+      if (in.size() > Integer.MAX_VALUE) {
+        return null;
+      }
+      MappedByteBuffer file = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      if (file.limit() < 8) {
+        return null;
+      }
+      if (file.get(0) == 'I' && file.get(1) == 'I') {
+        file.order(ByteOrder.LITTLE_ENDIAN);
+      } else if (file.get(0) == 'M' && file.get(1) == 'M') {
+        file.order(ByteOrder.BIG_ENDIAN);
+      } else {
+        return null;
+      }
+      if (file.getShort(2) != 42) {
+        return null;
+      }
+      return read(file, offset(file.getInt(4)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (IndexOutOfBoundsException e) {
+      throw new UncheckedIOException(new IOException(filename + " is damaged", e));
+    }
+  }
+
+  /*
+  read decodes the image described by the directory at offset directory, if it can
+   */
+  private static RunLengthEncoding read(ByteBuffer file, int directory)
+      throws IOException {
+    int width = -1;
+    int height = -1;
+    int compression = 1;
+    int photometric = -1;
+    int samples = 1;
+    int planar = 1;
+    int rowsPerStrip = Integer.MAX_VALUE;
+    int[] bits = { 1 };
+    int[] stripOffsets = null;
+    int[] stripCounts = null;
+    int entries = file.getShort(directory) & 0xFFFF;
+    for (int e = 0; e < entries; e++) {
+      int at = directory + 2 + 12 * e;
+      int tag = file.getShort(at) & 0xFFFF;
+      switch (tag) {
+      case 256: width = values(file, at)[0]; break;
+      case 257: height = values(file, at)[0]; break;
+      case 258: bits = values(file, at); break;
+      case 259: compression = values(file, at)[0]; break;
+      case 262: photometric = values(file, at)[0]; break;
+      case 273: stripOffsets = values(file, at); break;
+      case 277: samples = values(file, at)[0]; break;
+      case 278: rowsPerStrip = values(file, at)[0]; break;
+      case 279: stripCounts = values(file, at); break;
+      case 284: planar = values(file, at)[0]; break;
+      default: break;
+      }
+    }
+    boolean rgb = photometric == PHOTOMETRIC_RGB && (samples == 3 || samples == 4);
+    boolean gray = (photometric == PHOTOMETRIC_BLACK_IS_ZERO ||
+                    photometric == PHOTOMETRIC_WHITE_IS_ZERO) && samples == 1;
+    if ((compression != COMPRESSION_PACKBITS && compression != COMPRESSION_NONE) ||
+        !(rgb || gray) ||
+        (samples > 1 && planar != 1) || width <= 0 || height <= 0 ||
+        stripOffsets == null || stripCounts == null ||
+        stripOffsets.length != stripCounts.length) {
+      return null;
+    }
+    for (int b = 0; b < samples; b++) {
+      if (bits[Math.min(b, bits.length - 1)] != 8) {
+        return null;
+      }
+    }
+    Unpacker unpacker = new Unpacker(samples, photometric == PHOTOMETRIC_WHITE_IS_ZERO);
+    long rowBytes = (long) samples * width;
+    int y = 0;
+    for (int s = 0; s < stripOffsets.length && y < height; s++) {
+      int rows = Math.min(rowsPerStrip, height - y);
+      if (compression == COMPRESSION_PACKBITS) {
+        unpacker.strip(file, stripOffsets[s], stripCounts[s], rows * rowBytes);
+      } else {
+        unpacker.raw(file, stripOffsets[s], stripCounts[s], rows * rowBytes);
+      }
+      y += rows;
+    }
+    if (y < height) {
+      throw new IOException("TIFF image has too few strips");
+    }
+    RunStore runs = new RunStore(width, height);
+    unpacker.runs.appendTo(runs);
+    return new RunLengthEncoding(width, height, runs);
+  }
+
+  /*
+  values returns the SHORT or LONG values of a directory entry
+   */
+  private static int[] values(ByteBuffer file, int at) throws IOException {
+    int type = file.getShort(at + 2);
+    int count = file.getInt(at + 4);
+    int size = type == SHORT ? 2 : type == LONG ? 4 : 0;
+    if (size == 0) {
+      throw new IOException("unexpected TIFF field type " + type);
+    }
+    if (count <= 0) {
+      throw new IOException("bad TIFF: a field has " +
+                            Integer.toUnsignedString(count) + " values");
+    }
+    // values that fit in four bytes are stored in the entry itself
+    int from = (long) size * count <= 4 ? at + 8 : offset(file.getInt(at + 8));
+    // a damaged count must not allocate more values than the file can hold
+    if ((long) size * count > file.limit() - (long) from) {
+      throw new IOException("bad TIFF: " + count + " values run past the end of the file");
+    }
+    int[] values = new int[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = size == 2 ? file.getShort(from + 2 * i) & 0xFFFF
+                            : offset(file.getInt(from + 4 * i));
+    }
+    return values;
+  }
+
+  /*
+  offset checks an unsigned TIFF LONG, which as an int is negative above 2GB;
+  no such offset or size fits in a file that could be mapped
+   */
+  private static int offset(int value) throws IOException {
+    if (value < 0) {
+      throw new IOException("TIFF value " + Integer.toUnsignedString(value) +
+                            " is out of range");
+    }
+    return value;
+  }
+
+  /**
+   *  The Unpacker class turns PackBits packets into runs, assembling pixels
+   *  from samples across packet boundaries.
+   */
+  private static class Unpacker {
+    final RunEncoder runs = new RunEncoder();
+    private final int samples;
+    private final boolean whiteIsZero;
+    // the samples of the pixel being assembled, and how many there are so far
+    private final int[] pixel = new int[3];
+    private int phase;
+
+    Unpacker(int samples, boolean whiteIsZero) {
+      this.samples = samples;
+      this.whiteIsZero = whiteIsZero;
+    }
+
+    /*
+    strip unpacks count bytes of packets at offset into bytes samples
+     */
+    void strip(ByteBuffer file, int offset, int count, long bytes) throws IOException {
+      int at = offset;
+      int end = offset + count;
+      while (bytes > 0) {
+        if (at >= end) {
+          throw new IOException("TIFF strip is too short");
+        }
+        int header = file.get(at++);
+        if (header >= 0) {
+          int n = (int) Math.min(header + 1, bytes);
+          for (int i = 0; i < n; i++) {
+            sample(file.get(at + i) & 0xFF);
+          }
+          at += header + 1;
+          bytes -= n;
+        } else if (header != -128) {
+          int n = (int) Math.min(1 - header, bytes);
+          repeat(file.get(at++) & 0xFF, n);
+          bytes -= n;
+        }
+      }
+    }
+
+    /*
+    raw takes bytes uncompressed samples from the count bytes at offset
+     */
+    void raw(ByteBuffer file, int offset, int count, long bytes) throws IOException {
+      if (count < bytes) {
+        throw new IOException("TIFF strip is too short");
+      }
+      for (int i = 0; i < bytes; i++) {
+        sample(file.get(offset + i) & 0xFF);
+      }
+    }
+
+    /*
+    repeat takes the same sample n times; whole pixels of it make one run
+     */
+    private void repeat(int value, int n) {
+      while (phase != 0 && n > 0) {
+        sample(value);
+        n--;
+      }
+      int whole = n / samples;
+      if (whole > 0) {
+        int v = whiteIsZero ? 255 - value : value;
+        runs.addRun(PixImage.pack(v, v, v), whole);
+      }
+      for (n -= whole * samples; n > 0; n--) {
+        sample(value);
+      }
+    }
+
+    private void sample(int value) {
+      if (samples == 1) {
+        int v = whiteIsZero ? 255 - value : value;
+        runs.addRun(PixImage.pack(v, v, v), 1);
+        return;
+      }
+      if (phase < 3) {
+        pixel[phase] = value;
+      }
+      if (++phase == samples) {
+        runs.addRun(PixImage.pack(pixel[0], pixel[1], pixel[2]), 1);
+        phase = 0;
+      }
+    }
+  }
+
+  private static int directorySize() {
+    return 2 + 12 * ENTRIES + 4;
+  }
+
+  /*
+  trailer lays out, from file offset base, the values too big to fit in their
+  entries and then the image file directory, which ends the buffer; base and the
+  offsets are unsigned, and int sums of them keep the right low 32 bits
+   */
+  private static ByteBuffer trailer(int width, int height, int rowsPerStrip,
+                                    int[] stripOffsets, int[] stripCounts,
+                                    int base, int compression) {
+    int strips = stripOffsets.length;
+    ByteBuffer b = ByteBuffer.allocate(16 + 8 * strips + directorySize())
+        .order(ByteOrder.LITTLE_ENDIAN);
+    int bitsAt = base;
+    b.putShort((short) 8).putShort((short) 8).putShort((short) 8).putShort((short) 0);
+    int resolutionAt = base + 8;
+    b.putInt(72).putInt(1);
+    int offsetsAt = base + 16;
+    for (int s = 0; s < strips; s++) {
+      b.putInt(stripOffsets[s]);
+    }
+    int countsAt = offsetsAt + 4 * strips;
+    for (int s = 0; s < strips; s++) {
+      b.putInt(stripCounts[s]);
+    }
+    b.putShort((short) ENTRIES);
+    entry(b, 256, LONG, 1, width);
+    entry(b, 257, LONG, 1, height);
+    entry(b, 258, SHORT, 3, bitsAt);
+    entry(b, 259, SHORT, 1, compression);
+    entry(b, 262, SHORT, 1, PHOTOMETRIC_RGB);
+    entry(b, 273, LONG, strips, strips == 1 ? stripOffsets[0] : offsetsAt);
+    entry(b, 277, SHORT, 1, 3);
+    entry(b, 278, LONG, 1, rowsPerStrip);
+    entry(b, 279, LONG, strips, strips == 1 ? stripCounts[0] : countsAt);
+    entry(b, 282, RATIONAL, 1, resolutionAt);
+    entry(b, 283, RATIONAL, 1, resolutionAt);
+    entry(b, 284, SHORT, 1, 1);
+    entry(b, 296, SHORT, 1, 2);
+    b.putInt(0);
+    b.flip();
+    return b;
+  }
+
+  /*
+  entry writes one directory entry; a single SHORT sits in the low half of the value
+   */
+  private static void entry(ByteBuffer b, int tag, short type, int count, int value) {
+    b.putShort((short) tag).putShort(type).putInt(count);
+    if (type == SHORT && count == 1) {
+      b.putShort((short) value).putShort((short) 0);
+    } else {
+      b.putInt(value);
+    }
+  }
+
+  /**
+   *  The Packer class PackBits-encodes the pixels of a strip, row by row,
+   *  into a byte array, or copies them uncompressed if compression is
+   *  switched off.
+   */
+  private static class Packer {
+    private final byte[] bytes;
+    private int size;
+    // the header byte of the literal packet being filled, and its length
+    private int literalAt;
+    private int literalLength;
+    private boolean compress = true;
+
+    Packer(int capacity) {
+      bytes = new byte[capacity + 1];
+    }
+
+    void clear() {
+      size = 0;
+      literalLength = 0;
+    }
+
+    byte[] bytes() {
+      return bytes;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void setCompress(boolean compress) {
+      this.compress = compress;
+    }
+
+    /*
+    pixels packs count pixels of one packed color
+     */
+    void pixels(int rgb, int count) {
+      int red = (rgb >> 16) & 0xFF;
+      int green = (rgb >> 8) & 0xFF;
+      int blue = rgb & 0xFF;
+      if (!compress) {
+        for (int i = 0; i < count; i++) {
+          bytes[size++] = (byte) red;
+          bytes[size++] = (byte) green;
+          bytes[size++] = (byte) blue;
+        }
+        return;
+      }
+      if (red == green && green == blue) {
+        repeat(red, 3 * count);
+        return;
+      }
+      for (int i = 0; i < count; i++) {
+        literal(red);
+        literal(green);
+        literal(blue);
+      }
+    }
+
+    /*
+    endRow closes the open literal packet, since a packet never crosses rows
+     */
+    void endRow() {
+      literalLength = 0;
+    }
+
+    private void repeat(int value, int count) {
+      literalLength = 0;
+      while (count >= 2) {
+        int n = Math.min(count, 128);
+        bytes[size++] = (byte) (1 - n);
+        bytes[size++] = (byte) value;
+        count -= n;
+      }
+      if (count == 1) {
+        literal(value);
+      }
+    }
+
+    private void literal(int value) {
+      if (literalLength == 0) {
+        literalAt = size++;
+      }
+      bytes[size++] = (byte) value;
+      literalLength++;
+      bytes[literalAt] = (byte) (literalLength - 1);
+      if (literalLength == 128) {
+        literalLength = 0;
+      }
+    }
+  }
+}
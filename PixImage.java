@@ -1,5 +1,11 @@
 /* PixImage.java */
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
 /** @author Xiaowen Wang
 */
 
@@ -19,8 +25,26 @@ public class PixImage {
 
     private int width;
     private int height;
+    // the number of pixels of an on-heap image; unused for a direct image,
+    // which may have more pixels than an int can count
     private int size;
-    private short[][][] matrixRGB;
+    // one packed 0x00RRGGBB int per pixel, rows stored one after another,
+    // either in pixels on the heap or, for allocateDirect() images, in direct
+    // segments of rowsPerSegment rows each
+    private int[] pixels;
+    private IntBuffer[] segments;
+    private int rowsPerSegment;
+    // summed-area tables of the red, green and blue planes, built on demand by
+    // regionSums() and dropped whenever a pixel changes
+    private long[] sums;
+
+    /** Channel numbers for getRegionSum() and getRegionMean(). */
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+
+    // the most pixels allocateDirect() puts in one segment (1GB)
+    private static final int SEGMENT_PIXELS = 1 << 28;
 
 
 
@@ -36,8 +60,223 @@ public class PixImage {
       this.width = width;
       this.height = height;
       this.size = width * height;
-      // to avoid dealing with edge and corner to get average, add dummy values
-      this.matrixRGB = new short[width+2][height+2][3];
+      this.pixels = new int[size];
+  }
+
+  /*
+  this constructor leaves the storage to the caller
+   */
+  private PixImage(int width, int height, int[] pixels, IntBuffer[] segments,
+                   int rowsPerSegment) {
+      this.width = width;
+      this.height = height;
+      this.size = pixels != null ? pixels.length : 0;
+      this.pixels = pixels;
+      this.segments = segments;
+      this.rowsPerSegment = rowsPerSegment;
+  }
+
+  /*
+  array returns the pixels of an on-heap image without copying them, or null for
+  a direct image; like asIntBuffer(), it drops cached region sums
+   */
+  int[] array() {
+      sums = null;
+      return pixels;
+  }
+
+  /*
+  wrap makes a PixImage over an array of packed pixels without copying it
+   */
+  static PixImage wrap(int width, int height, int[] pixels) {
+      return new PixImage(width, height, pixels, null, 0);
+  }
+
+  /**
+   * allocateDirect() constructs a black PixImage whose pixels live outside
+   * the Java heap, in direct buffers.  Such an image behaves like any other
+   * PixImage, but does not add to garbage collection work, and its rows can
+   * be handed to I/O through rowBuffer() without copying.  Images computed
+   * from it, such as boxBlur() results, are direct as well.
+   *
+   * The pixels are split by rows into segments of at most 1GB each, so the
+   * image may be many gigabytes; only a single row is limited, to
+   * Integer.MAX_VALUE / 4 pixels.  boxBlur(), boxBlurRadius(), convolve(),
+   * sobelEdges(), blurSobelEdges() and getRegionSum() work on a direct image
+   * a few rows at a time, so their heap use does not grow with the height of
+   * the image.  sobelGray() and blurSobelGray() return an on-heap GrayImage,
+   * which is limited to Integer.MAX_VALUE pixels.
+   *
+   * @param width the width of the image.
+   * @param height the height of the image.
+   * @return a new off-heap PixImage.
+   * @throws IllegalArgumentException if a row has too many pixels.
+   */
+  public static PixImage allocateDirect(int width, int height) {
+      return allocateDirect(width, height, Math.max(1, SEGMENT_PIXELS / Math.max(width, 1)));
+  }
+
+  /*
+  allocateDirect with a third parameter puts rowsPerSegment rows in each segment;
+  main() uses it to test images of several segments without gigabytes of memory
+   */
+  static PixImage allocateDirect(int width, int height, int rowsPerSegment) {
+      if (width < 0 || height < 0 || rowsPerSegment < 1) {
+          throw new IllegalArgumentException("bad size " + width + " x " + height);
+      }
+      if (width > Integer.MAX_VALUE / 4) {
+          throw new IllegalArgumentException("a row of a direct PixImage holds at most " +
+              Integer.MAX_VALUE / 4 + " pixels, not " + width);
+      }
+      int count = height == 0 ? 0 : (height - 1) / rowsPerSegment + 1;
+      IntBuffer[] segments = new IntBuffer[count];
+      for (int s = 0; s < count; s++) {
+          int rows = Math.min(rowsPerSegment, height - s * rowsPerSegment);
+          segments[s] = ByteBuffer.allocateDirect(Math.multiplyExact(4 * width, rows))
+              .order(ByteOrder.nativeOrder()).asIntBuffer();
+      }
+      return new PixImage(width, height, null, segments, rowsPerSegment);
+  }
+
+  /**
+   * isDirect() returns true if the pixels of this PixImage live outside the
+   * Java heap.
+   *
+   * @return true if this image was made by allocateDirect().
+   */
+  public boolean isDirect() {
+      return pixels == null;
+  }
+
+  /**
+   * asIntBuffer() returns a view of the pixels, one 0x00RRGGBB int per pixel,
+   * rows one after another.  The view shares storage with this image.
+   *
+   * Region sums cached before this call are dropped; pixels written later
+   * through the view are not seen by getRegionSum() until a pixel is set
+   * through this PixImage.
+   *
+   * @return an IntBuffer over the pixels of this image.
+   * @throws UnsupportedOperationException if this is a direct image of more
+   * than one segment, which has no single buffer; use rowBuffer() instead.
+   */
+  public IntBuffer asIntBuffer() {
+      sums = null;
+      if (pixels != null) {
+          return IntBuffer.wrap(pixels);
+      }
+      IntBuffer[] all = storage();
+      if (all.length > 1) {
+          throw new UnsupportedOperationException("a direct PixImage of " + all.length +
+                                                  " segments has no single buffer");
+      }
+      return all.length == 0 ? IntBuffer.allocate(0) : all[0].duplicate();
+  }
+
+  /**
+   * rowBuffer() returns a view of row y, width 0x00RRGGBB ints, that shares
+   * storage with this image.  Region sums are dropped as by asIntBuffer().
+   *
+   * @param y the row.
+   * @return an IntBuffer over the pixels of the row.
+   */
+  public IntBuffer rowBuffer(int y) {
+      if (y < 0 || y >= height) {
+          throw new IndexOutOfBoundsException("row " + y + " is off the image");
+      }
+      sums = null;
+      IntBuffer view = pixels != null ? IntBuffer.wrap(pixels) : segment(y).duplicate();
+      int start = offset(0, y);
+      view.limit(start + width).position(start);
+      return view.slice();
+  }
+
+  /**
+   * release() drops this image's hold on the off-heap memory of a direct
+   * PixImage, so the memory is freed as soon as the garbage collector
+   * reclaims the buffers, even if the PixImage itself is still reachable.
+   * Java gives no way to free a direct buffer at once, and views returned by
+   * asIntBuffer() and rowBuffer() keep the memory alive.  The image must not be used
+   * afterward; any access throws IllegalStateException.  It does nothing to
+   * an on-heap image.
+   */
+  public void release() {
+      segments = null;
+  }
+
+  /*
+  storage returns the direct segments, failing clearly once they have been released
+   */
+  private IntBuffer[] storage() {
+      if (segments == null) {
+          throw new IllegalStateException("PixImage has been released");
+      }
+      return segments;
+  }
+
+  /*
+  segment returns the direct segment that holds row y
+   */
+  private IntBuffer segment(int y) {
+      return storage()[y / rowsPerSegment];
+  }
+
+  /*
+  offset returns the index of pixel (x, y) in pixels, or in its direct segment
+   */
+  private int offset(int x, int y) {
+      return pixels != null ? y * width + x : (y % rowsPerSegment) * width + x;
+  }
+
+  /*
+  rgbAt and setRGBAt read and write the packed pixel at (x, y)
+   */
+  private int rgbAt(int x, int y) {
+      return pixels != null ? pixels[y * width + x] : segment(y).get(offset(x, y));
+  }
+
+  private void setRGBAt(int x, int y, int rgb) {
+      sums = null;
+      if (pixels != null) {
+          pixels[y * width + x] = rgb;
+      } else {
+          segment(y).put(offset(x, y), rgb);
+      }
+  }
+
+  /*
+  readRow copies row y of packed pixels into dst starting at dstOffset
+   */
+  void readRow(int y, int[] dst, int dstOffset) {
+      if (pixels != null) {
+          System.arraycopy(pixels, y * width, dst, dstOffset, width);
+      } else {
+          IntBuffer view = segment(y).duplicate();
+          view.position(offset(0, y));
+          view.get(dst, dstOffset, width);
+      }
+  }
+
+  /*
+  writeRow copies width packed pixels from src starting at srcOffset into row y
+   */
+  void writeRow(int y, int[] src, int srcOffset) {
+      sums = null;
+      if (pixels != null) {
+          System.arraycopy(src, srcOffset, pixels, y * width, width);
+      } else {
+          IntBuffer view = segment(y).duplicate();
+          view.position(offset(0, y));
+          view.put(src, srcOffset, width);
+      }
+  }
+
+  /*
+  sameKind returns a black image of the same size stored the same way as this one
+   */
+  private PixImage sameKind() {
+      return isDirect() ? allocateDirect(width, height, rowsPerSegment)
+                        : new PixImage(width, height);
   }
 
   /**
@@ -66,7 +305,7 @@ public class PixImage {
    * @return the red intensity of the pixel at coordinate (x, y).
    */
   public short getRed(int x, int y) {
-    return matrixRGB[x+1][y+1][0];
+    return (short) ((rgbAt(x, y) >> 16) & 0xFF);
   }
 
   /**
@@ -77,7 +316,7 @@ public class PixImage {
    * @return the green intensity of the pixel at coordinate (x, y).
    */
   public short getGreen(int x, int y) {
-    return matrixRGB[x+1][y+1][1];
+    return (short) ((rgbAt(x, y) >> 8) & 0xFF);
   }
 
   /**
@@ -88,7 +327,7 @@ public class PixImage {
    * @return the blue intensity of the pixel at coordinate (x, y).
    */
   public short getBlue(int x, int y) {
-    return matrixRGB[x+1][y+1][2];
+    return (short) (rgbAt(x, y) & 0xFF);
   }
 
   /**
@@ -105,9 +344,50 @@ public class PixImage {
    * @param blue the new blue intensity for the pixel at coordinate (x, y).
    */
   public void setPixel(int x, int y, short red, short green, short blue) {
-    matrixRGB[x+1][y+1][0] = red;
-    matrixRGB[x+1][y+1][1] = green;
-    matrixRGB[x+1][y+1][2] = blue;
+    if (!inRange(red, green, blue)) {
+      return;
+    }
+    setRGBAt(x, y, pack(red, green, blue));
+  }
+
+  /**
+   * getRGB() returns the pixel at coordinate (x, y) packed into one int as
+   * 0x00RRGGBB.
+   *
+   * @param x the x-coordinate of the pixel.
+   * @param y the y-coordinate of the pixel.
+   * @return the packed red, green, and blue intensities of the pixel.
+   */
+  int getRGB(int x, int y) {
+    return rgbAt(x, y);
+  }
+
+  /**
+   * setRGB() sets the pixel at coordinate (x, y) from a packed 0x00RRGGBB int.
+   *
+   * @param x the x-coordinate of the pixel.
+   * @param y the y-coordinate of the pixel.
+   * @param rgb the packed red, green, and blue intensities.
+   */
+  void setRGB(int x, int y, int rgb) {
+    setRGBAt(x, y, rgb & 0xFFFFFF);
+  }
+
+  /*
+  pack() puts three intensities in the range 0...255 into one 0x00RRGGBB int
+   */
+  static int pack(int red, int green, int blue) {
+    return (red << 16) | (green << 8) | blue;
+  }
+
+  /*
+  inRange() returns true if all three intensities are in the range 0...255.
+  setPixel() here, in RunLengthEncoding, and in PixelBatch ignores a change
+  that fails it
+   */
+  static boolean inRange(int red, int green, int blue) {
+    return red >= 0 && red <= 255 && green >= 0 && green <= 255 &&
+           blue >= 0 && blue <= 255;
   }
 
   /**
@@ -117,27 +397,16 @@ public class PixImage {
   public String toString() {
     // Replace the following line with your solution.
       StringBuilder image = new StringBuilder();
-      for(int i = 0; i < width+2;i++){
-          for(int j = 0; j < height+2; j++) {
-              image.append("["+matrixRGB[i][j][0]+","+matrixRGB[i][j][1]+","+matrixRGB[i][j][2]+"]"+" ");
+      for(int i = 0; i < width;i++){
+          for(int j = 0; j < height; j++) {
+              int rgb = rgbAt(i, j);
+              image.append("["+((rgb >> 16) & 0xFF)+","+((rgb >> 8) & 0xFF)+","+(rgb & 0xFF)+"]"+" ");
           }
           image.append("\n");
       }
     return image.toString();
   }
 
-    private PixImage copy(PixImage pic){
-        PixImage copy = new PixImage(pic.width,pic.height);
-        for(int c = 0; c < 3; c++) {
-            for (int x = 0; x < copy.width + 2; x++) {
-                for (int y = 0; y < copy.height + 2; y++) {
-                    copy.matrixRGB[x][y][c] = pic.matrixRGB[x][y][c];
-                }
-            }
-        }
-        return copy;
-    }
-
   /**
    * boxBlur() returns a blurred version of "this" PixImage.
    *
@@ -160,49 +429,416 @@ public class PixImage {
    * box blurring to perform.  If numIterations is zero or negative, "this"
    * PixImage is returned (not a copy).  If numIterations is positive, the
    * return value is a newly constructed PixImage.
+   *
+   * Large images are blurred in parallel row bands (see RowBands); the result
+   * is the same as blurring on one thread.
    * @param numIterations the number of iterations of box blurring.
    * @return a blurred version of "this" PixImage.
    */
   public PixImage boxBlur(int numIterations) {
     if(numIterations <= 0) {
         return this;
+    } else if(isDirect()) {
+        // stream the rows through the blur passes, keeping a few rows per pass
+        PixImage blurred = sameKind();
+        pushRows(new BlurSobelPipeline(width, height, numIterations, blurred, false));
+        return blurred;
     } else {
-        PixImage copyImageBlur = new PixImage(this.width,this.height);
-        PixImage temp = copy(this);
+        // the running image and the row sums ping-pong between two buffers,
+        // so no image is allocated per iteration
+        final int[] planes = toPlanes();
+        final int[] rowSums = new int[3 * size];
         for(int n = 0; n < numIterations; n++) {
-            for(int i = 1; i < width+1; i++){
-                for(int j = 1; j < height+1; j++){
-                    copyImageBlur.matrixRGB[i][j][0] = blurAve(i,j,0,temp);
-                    copyImageBlur.matrixRGB[i][j][1] = blurAve(i,j,1,temp);
-                    copyImageBlur.matrixRGB[i][j][2] = blurAve(i,j,2,temp);
+            // the vertical pass reads one row of sums above and below its band,
+            // so every band of the horizontal pass must finish first
+            RowBands.run(height, width, (from, to) -> blurRows(planes, rowSums, from, to));
+            RowBands.run(height, width, (from, to) -> blurColumns(rowSums, planes, from, to));
+        }
+        return fromPlanes(planes, sameKind());
+    }
+  }
+
+    /*
+ toPlanes unpacks the pixels into one int[] holding the red plane, then the green plane, then the blue plane
+  */
+    private int[] toPlanes() {
+        int[] planes = new int[3 * size];
+        int[] row = new int[width];
+        for(int j = 0; j < height; j++) {
+            readRow(j, row, 0);
+            for(int i = 0; i < width; i++) {
+                int rgb = row[i];
+                int k = j * width + i;
+                planes[k] = (rgb >> 16) & 0xFF;
+                planes[size + k] = (rgb >> 8) & 0xFF;
+                planes[2 * size + k] = rgb & 0xFF;
+            }
+        }
+        return planes;
+    }
+
+    /*
+ fromPlanes packs red, green and blue planes laid out as in toPlanes into image and returns it
+  */
+    private static PixImage fromPlanes(int[] planes, PixImage image) {
+        int width = image.width;
+        int size = image.size;
+        int[] row = new int[width];
+        for(int j = 0; j < image.height; j++) {
+            for(int i = 0; i < width; i++) {
+                int k = j * width + i;
+                row[i] = pack(planes[k], planes[size + k], planes[2 * size + k]);
+            }
+            image.writeRow(j, row, 0);
+        }
+        return image;
+    }
+
+    // (sum * DIV6) >>> 16 == sum / 6 and (sum * DIV9) >>> 16 == sum / 9 for every
+    // sum of up to nine intensities; unlike "/" the multiply vectorizes
+    private static final int DIV6 = 10923;
+    private static final int DIV9 = 7282;
+
+    /*
+ blurRows writes into sums, for rows fromRow...toRow - 1, the sum of each pixel and its left and right
+ neighbors (pixels off the image count as zero). The two end pixels are done apart so the inner loop
+ has no branches and C2 can turn it into SIMD adds.
+  */
+    private void blurRows(int[] planes, int[] sums, int fromRow, int toRow) {
+        for(int c = 0; c < 3; c++) {
+            for(int j = fromRow; j < toRow; j++) {
+                int start = c * size + j * width;
+                int last = start + width - 1;
+                if(width == 1) {
+                    sums[start] = planes[start];
+                    continue;
+                }
+                sums[start] = planes[start] + planes[start + 1];
+                for(int i = start + 1; i < last; i++) {
+                    sums[i] = planes[i - 1] + planes[i] + planes[i + 1];
                 }
+                sums[last] = planes[last - 1] + planes[last];
             }
-            temp = copy(copyImageBlur);
         }
-        return copyImageBlur;
     }
-  }
 
     /*
- blurAve is to find average value of RGB of a point, input has position(x,y), c to indicate color
+ blurColumns adds up the row sums above, at and below each pixel of rows fromRow...toRow - 1 and divides
+ by the number of neighbors: 4 at a corner, 6 on the boundary, 9 inside
   */
-    private short blurAve(int x, int y, int c, PixImage temp){
-        int sum = 0;
-        short ave = 0;
+    private void blurColumns(int[] sums, int[] planes, int fromRow, int toRow) {
+        for(int c = 0; c < 3; c++) {
+            for(int j = fromRow; j < toRow; j++) {
+                int row = c * size + j * width;
+                int end = row + width;
+                if(j > 0 && j < height - 1) {
+                    for(int i = row; i < end; i++) {
+                        planes[i] = sums[i - width] + sums[i] + sums[i + width];
+                    }
+                } else if(j > 0) {
+                    for(int i = row; i < end; i++) {
+                        planes[i] = sums[i - width] + sums[i];
+                    }
+                } else if(j < height - 1) {
+                    for(int i = row; i < end; i++) {
+                        planes[i] = sums[i] + sums[i + width];
+                    }
+                } else {
+                    System.arraycopy(sums, row, planes, row, width);
+                }
 
-        for(int i = x-1; i < x+2; i++){
-            for(int j = y-1; j < y+2; j++){
-                sum += temp.matrixRGB[i][j][c];
+                divideRow(planes, row, width, j == 0 || j == height - 1);
             }
         }
-        if((x ==1 || x == width) && (y == 1 || y == height)){
-            ave = (short) (sum / 4);
-        } else if(x == 1 || x == width || y == 1 || y == height){
-            ave = (short) (sum / 6);
-        } else {
-            ave = (short) (sum / 9);
+    }
+
+    /*
+ divideRow turns the neighborhood sums sums[start...start + width - 1] of one row into averages:
+ the sums are divided by 4 at a corner, 6 on the boundary and 9 inside
+  */
+    static void divideRow(int[] sums, int start, int width, boolean edgeRow) {
+        int last = start + width - 1;
+        sums[start] = edgeRow ? sums[start] >> 2 : (sums[start] * DIV6) >>> 16;
+        if(last > start) {
+            sums[last] = edgeRow ? sums[last] >> 2 : (sums[last] * DIV6) >>> 16;
+        }
+        int divisor = edgeRow ? DIV6 : DIV9;
+        for(int i = start + 1; i < last; i++) {
+            sums[i] = (sums[i] * divisor) >>> 16;
         }
-        return ave;
+    }
+
+  /**
+   * getRegionSum() returns the sum of one color over the w x h rectangle of
+   * pixels whose top left corner is (x, y).  The first call builds a table
+   * of sums for the whole image; after that any rectangle costs four
+   * lookups, until a pixel is changed.  The table takes 24 bytes a pixel on
+   * the heap, so on a direct image none is built, and each call reads the
+   * rows of the rectangle instead.
+   *
+   * @param channel RED, GREEN or BLUE.
+   * @param x the x-coordinate of the left column of the rectangle.
+   * @param y the y-coordinate of the top row of the rectangle.
+   * @param w the width of the rectangle.
+   * @param h the height of the rectangle.
+   * @return the sum of the channel's intensities over the rectangle.
+   */
+  public long getRegionSum(int channel, int x, int y, int w, int h) {
+      if (channel < RED || channel > BLUE || w < 0 || h < 0 || x < 0 || y < 0 ||
+          x + w > width || y + h > height) {
+          throw new IllegalArgumentException("no such channel or rectangle");
+      }
+      if (isDirect()) {
+          int shift = 16 - 8 * channel;
+          int[] row = new int[width];
+          long sum = 0;
+          for (int j = y; j < y + h; j++) {
+              readRow(j, row, 0);
+              for (int i = x; i < x + w; i++) {
+                  sum += (row[i] >> shift) & 0xFF;
+              }
+          }
+          return sum;
+      }
+      return rectangleSum(regionSums(), channel, x, y, x + w, y + h);
+  }
+
+  /**
+   * getRegionMean() returns the average of one color over the w x h
+   * rectangle of pixels whose top left corner is (x, y), using the same table
+   * as getRegionSum().
+   *
+   * @param channel RED, GREEN or BLUE.
+   * @param x the x-coordinate of the left column of the rectangle.
+   * @param y the y-coordinate of the top row of the rectangle.
+   * @param w the width of the rectangle.
+   * @param h the height of the rectangle.
+   * @return the mean intensity of the channel over the rectangle.
+   */
+  public double getRegionMean(int channel, int x, int y, int w, int h) {
+      return (double) getRegionSum(channel, x, y, w, h) / ((long) w * h);
+  }
+
+  /**
+   * boxBlurRadius() returns a blurred version of "this" PixImage in which
+   * each pixel is the average of the (2 * radius + 1) x (2 * radius + 1)
+   * square around it, counting only the pixels inside the image and rounding
+   * toward zero.  It reads the table of getRegionSum(), so each pixel costs
+   * the same whatever the radius.  A direct image keeps running column sums
+   * over the rows around each row instead of the table, which costs the
+   * same per pixel with only a few rows on the heap.  For radius 1 on an
+   * image at least two pixels wide and tall, this is boxBlur(1).
+   *
+   * If radius is zero or negative, "this" PixImage is returned.
+   *
+   * @param radius how far the averaging square reaches from each pixel.
+   * @return a blurred version of "this" PixImage.
+   */
+  public PixImage boxBlurRadius(final int radius) {
+      if (radius <= 0) {
+          return this;
+      } else if (isDirect()) {
+          return slidingBoxBlur(radius);
+      }
+      final long[] table = regionSums();
+      final PixImage blurred = sameKind();
+      RowBands.run(height, width, (from, to) -> {
+          int[] row = new int[width];
+          for (int j = from; j < to; j++) {
+              int y0 = Math.max(j - radius, 0);
+              int y1 = Math.min(j + radius + 1, height);
+              for (int i = 0; i < width; i++) {
+                  int x0 = Math.max(i - radius, 0);
+                  int x1 = Math.min(i + radius + 1, width);
+                  long count = (long) (x1 - x0) * (y1 - y0);
+                  row[i] = pack((int) (rectangleSum(table, RED, x0, y0, x1, y1) / count),
+                                (int) (rectangleSum(table, GREEN, x0, y0, x1, y1) / count),
+                                (int) (rectangleSum(table, BLUE, x0, y0, x1, y1) / count));
+              }
+              blurred.writeRow(j, row, 0);
+          }
+      });
+      return blurred;
+  }
+
+  /*
+  slidingBoxBlur computes boxBlurRadius with, for each band of rows, running sums
+  of every column over the rows inside the square; each band starts its sums anew
+   */
+  private PixImage slidingBoxBlur(final int radius) {
+      final PixImage blurred = sameKind();
+      RowBands.run(height, width, (from, to) -> {
+          // columns holds each color's column sums over rows y0...y1 - 1, and
+          // prefix the running total of one color's column sums
+          long[] columns = new long[3 * width];
+          long[] prefix = new long[width + 1];
+          int[] packed = new int[width];
+          int[] out = new int[width];
+          int y0 = Math.max(from - radius, 0);
+          int y1 = y0;
+          for (int j = from; j < to; j++) {
+              for (; y1 < Math.min(j + radius + 1, height); y1++) {
+                  addRow(columns, y1, packed, 1);
+              }
+              for (; y0 < j - radius; y0++) {
+                  addRow(columns, y0, packed, -1);
+              }
+              Arrays.fill(out, 0);
+              for (int c = 0; c < 3; c++) {
+                  for (int i = 0; i < width; i++) {
+                      prefix[i + 1] = prefix[i] + columns[c * width + i];
+                  }
+                  for (int i = 0; i < width; i++) {
+                      int x0 = Math.max(i - radius, 0);
+                      int x1 = Math.min(i + radius + 1, width);
+                      long count = (long) (x1 - x0) * (y1 - y0);
+                      out[i] |= (int) ((prefix[x1] - prefix[x0]) / count) << (16 - 8 * c);
+                  }
+              }
+              blurred.writeRow(j, out, 0);
+          }
+      });
+      return blurred;
+  }
+
+  /*
+  addRow adds sign times each color of row y to the column sums of that color
+   */
+  private void addRow(long[] columns, int y, int[] packed, int sign) {
+      readRow(y, packed, 0);
+      for (int i = 0; i < width; i++) {
+          int rgb = packed[i];
+          columns[i] += sign * ((rgb >> 16) & 0xFF);
+          columns[width + i] += sign * ((rgb >> 8) & 0xFF);
+          columns[2 * width + i] += sign * (rgb & 0xFF);
+      }
+  }
+
+  /**
+   * convolve() filters "this" PixImage with a kernel, such as
+   * ConvolutionKernel.gaussian3() or ConvolutionKernel.sharpen(), and returns
+   * the result as a new PixImage.  Each color is filtered separately.
+   * Separable kernels run as a horizontal and then a vertical pass.  Like
+   * boxBlur(), large images are processed in parallel row bands.  A direct
+   * image is filtered one band of rows at a time, each read with the rows
+   * the kernel reaches above and below it, so the heap holds only one band.
+   *
+   * @param kernel the filter to apply.
+   * @param mode how neighbors off the image are treated.
+   * @return the filtered image.
+   */
+  public PixImage convolve(final ConvolutionKernel kernel,
+                           final ConvolutionKernel.EdgeMode mode) {
+      kernel.checkMode(mode);
+      if (isDirect()) {
+          return convolveBands(kernel, mode);
+      }
+      final int[] planes = toPlanes();
+      if (kernel.isSeparable()) {
+          final long[] rowSums = new long[3 * size];
+          RowBands.run(height, width, (from, to) ->
+              kernel.rowPass(planes, rowSums, width, height, from, to, mode));
+          RowBands.run(height, width, (from, to) ->
+              kernel.columnPass(rowSums, planes, width, height, from, to, mode));
+          return fromPlanes(planes, sameKind());
+      } else {
+          final int[] work = new int[3 * size];
+          RowBands.run(height, width, (from, to) ->
+              kernel.directPass(planes, work, width, height, from, to, mode));
+          return fromPlanes(work, sameKind());
+      }
+  }
+
+  /*
+  convolveBands filters a direct image in bands of about 64K pixels.  A band and
+  its halo are unpacked into planes as a small image of their own; rows at least
+  a radius from the halo's cut edges see the same neighbors as in the whole
+  image, and the cut edges that are not image edges are never read past
+   */
+  private PixImage convolveBands(ConvolutionKernel kernel,
+                                 ConvolutionKernel.EdgeMode mode) {
+      PixImage out = sameKind();
+      int radius = kernel.getRadius();
+      int band = Math.max(1, (1 << 16) / Math.max(width, 1));
+      int maxRows = Math.min(height, band + 2 * radius);
+      int[] planes = new int[3 * width * maxRows];
+      long[] rowSums = kernel.isSeparable() ? new long[3 * width * maxRows] : null;
+      int[] work = kernel.isSeparable() ? null : new int[3 * width * maxRows];
+      int[] packed = new int[width];
+      for (int from = 0; from < height; from += band) {
+          int to = Math.min(from + band, height);
+          int lo = Math.max(from - radius, 0);
+          int hi = Math.min(to + radius, height);
+          int rows = hi - lo;
+          int planeSize = width * rows;
+          for (int j = 0; j < rows; j++) {
+              readRow(lo + j, packed, 0);
+              for (int i = 0; i < width; i++) {
+                  int rgb = packed[i];
+                  planes[j * width + i] = (rgb >> 16) & 0xFF;
+                  planes[planeSize + j * width + i] = (rgb >> 8) & 0xFF;
+                  planes[2 * planeSize + j * width + i] = rgb & 0xFF;
+              }
+          }
+          int[] result;
+          if (kernel.isSeparable()) {
+              kernel.rowPass(planes, rowSums, width, rows, 0, rows, mode);
+              kernel.columnPass(rowSums, planes, width, rows, from - lo, to - lo, mode);
+              result = planes;
+          } else {
+              kernel.directPass(planes, work, width, rows, from - lo, to - lo, mode);
+              result = work;
+          }
+          for (int j = from - lo; j < to - lo; j++) {
+              for (int i = 0; i < width; i++) {
+                  int k = j * width + i;
+                  packed[i] = pack(result[k], result[planeSize + k],
+                                   result[2 * planeSize + k]);
+              }
+              out.writeRow(lo + j, packed, 0);
+          }
+      }
+      return out;
+  }
+
+    /*
+ regionSums returns the summed-area tables, building them if a pixel changed since the last call.
+ Entry (x, y) of a channel's (width + 1) x (height + 1) table is the sum over pixels left of x and above y.
+  */
+    private long[] regionSums() {
+        long[] table = sums;
+        if (table != null) {
+            return table;
+        }
+        int stride = width + 1;
+        int plane = stride * (height + 1);
+        table = new long[3 * plane];
+        int[] row = new int[width];
+        for (int j = 0; j < height; j++) {
+            readRow(j, row, 0);
+            for (int c = 0; c < 3; c++) {
+                int shift = 16 - 8 * c;
+                int above = c * plane + j * stride;
+                int here = above + stride;
+                long rowSum = 0;
+                for (int i = 0; i < width; i++) {
+                    rowSum += (row[i] >> shift) & 0xFF;
+                    table[here + i + 1] = table[above + i + 1] + rowSum;
+                }
+            }
+        }
+        sums = table;
+        return table;
+    }
+
+    /*
+ rectangleSum returns the sum of a channel over columns x0...x1 - 1 and rows y0...y1 - 1
+  */
+    private long rectangleSum(long[] table, int channel, int x0, int y0, int x1, int y1) {
+        int stride = width + 1;
+        int base = channel * stride * (height + 1);
+        return table[base + y1 * stride + x1] - table[base + y0 * stride + x1]
+             - table[base + y1 * stride + x0] + table[base + y0 * stride + x0];
     }
 
   /**
@@ -239,51 +875,224 @@ public class PixImage {
    *
    * See http://en.wikipedia.org/wiki/Sobel_operator#Formulation for details.
    *
+   * Large images are processed in parallel row bands (see RowBands).  The
+   * edges of a direct image are written straight into a direct result, a
+   * row at a time.
+   *
    * @return a grayscale PixImage representing the edges of the input image.
    * Whiter pixels represent stronger edges.
    */
   public PixImage sobelEdges() {
-      PixImage copyImageSobel = new PixImage(this.width,this.height);
-      PixImage temp = refineEdge();
-      for(int c = 0; c < 3; c++ ) {
-          for (int i = 1; i < width + 1; i++) {
-              for (int j = 1; j < height + 1; j++) {
-                  copyImageSobel.matrixRGB[i][j][c] = mag2gray(energy(i,j,temp));
-              }
-          }
+      if (isDirect()) {
+          PixImage edges = sameKind();
+          RowBands.run(height, width, (from, to) -> sobelRows(null, edges, from, to));
+          return edges;
       }
-      return copyImageSobel;
+      return fromGray(sobelGray());
   }
 
-    private PixImage refineEdge(){
-        PixImage mirror = copy(this);
-        for(int c = 0; c < 3; c++) {
-            for (int i = 0; i < width + 2; i++) {
-                mirror.matrixRGB[i][0][c] = mirror.matrixRGB[i][1][c];
-                mirror.matrixRGB[i][height + 1][c] = mirror.matrixRGB[i][height][c];
+    /*
+ fromGray turns a GrayImage into a PixImage stored the same way as this one
+  */
+    private PixImage fromGray(GrayImage edges) {
+        PixImage image = sameKind();
+        byte[] gray = edges.data();
+        int[] row = new int[width];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int g = gray[j * width + i] & 0xFF;
+                row[i] = pack(g, g, g);
             }
-            for (int j = 0; j < height + 2; j++) {
-                mirror.matrixRGB[0][j][c] = mirror.matrixRGB[1][j][c];
-                mirror.matrixRGB[width + 1][j][c] = mirror.matrixRGB[width][j][c];
+            image.writeRow(j, row, 0);
+        }
+        return image;
+    }
+
+  /**
+   * sobelGray() applies the Sobel operator like sobelEdges(), but returns the
+   * edge intensities as a GrayImage with one byte per pixel.
+   *
+   * @return a GrayImage representing the edges of the input image.
+   */
+  public GrayImage sobelGray() {
+      GrayImage edges = new GrayImage(this.width, this.height);
+      byte[] gray = edges.data();
+      RowBands.run(height, width, (from, to) -> sobelRows(gray, null, from, to));
+      return edges;
+  }
+
+    /*
+ sobelRows writes the edge intensities of rows fromRow...toRow - 1 into gray, or as gray pixels
+ into edges if gray is null. Each input row is unpacked once into red, green and blue planes, so
+ the gradients of the inner pixels are a plain loop over int arrays per color, without the shifts
+ and masks of packed pixels; the energies are then looked up in the precomputed mag2gray table.
+  */
+    private void sobelRows(byte[] gray, PixImage edges, int fromRow, int toRow) {
+        int[] energies = new int[width];
+        int[] packed = new int[width];
+        // ring[y % 3] holds row y as three planes once held[y % 3] == y
+        int[][] ring = new int[3][3 * width];
+        int[] held = { -1, -1, -1 };
+        for (int j = fromRow; j < toRow; j++) {
+            // off the image, the nearest edge row is mirrored
+            int[] above = unpackedRow(Math.max(j - 1, 0), ring, held, packed);
+            int[] row = unpackedRow(j, ring, held, packed);
+            int[] below = unpackedRow(Math.min(j + 1, height - 1), ring, held, packed);
+            Arrays.fill(energies, 0);
+            for (int c = 0; c < 3 * width; c += width) {
+                for (int i = c + 1; i < c + width - 1; i++) {
+                    int gx = above[i - 1] - above[i + 1] + 2 * row[i - 1] - 2 * row[i + 1] +
+                             below[i - 1] - below[i + 1];
+                    int gy = above[i - 1] + 2 * above[i] + above[i + 1] -
+                             below[i - 1] - 2 * below[i] - below[i + 1];
+                    energies[i - c] += gx * gx + gy * gy;
+                }
+            }
+            energies[0] = energy(0, above, row, below);
+            energies[width - 1] = energy(width - 1, above, row, below);
+            if (gray != null) {
+                for (int i = 0; i < width; i++) {
+                    gray[j * width + i] = (byte) energy2gray(energies[i]);
+                }
+            } else {
+                for (int i = 0; i < width; i++) {
+                    int g = energy2gray(energies[i]);
+                    energies[i] = pack(g, g, g);
+                }
+                edges.writeRow(j, energies, 0);
             }
         }
-        return mirror;
     }
-    /**
-     *
-      */
-
-  // compute energy of a pix point
-  private long energy(int x, int y, PixImage pic){
-      int[] gx = new int[3];
-      int[] gy = new int[3];
+
+    /*
+ unpackedRow returns row y as red, green and blue planes from the ring, reading and unpacking it
+ into its slot first unless the slot already holds it
+  */
+    private int[] unpackedRow(int y, int[][] ring, int[] held, int[] packed) {
+        int[] planes = ring[y % 3];
+        if (held[y % 3] != y) {
+            readRow(y, packed, 0);
+            for (int i = 0; i < width; i++) {
+                int rgb = packed[i];
+                planes[i] = (rgb >> 16) & 0xFF;
+                planes[width + i] = (rgb >> 8) & 0xFF;
+                planes[2 * width + i] = rgb & 0xFF;
+            }
+            held[y % 3] = y;
+        }
+        return planes;
+    }
+
+  // the largest energy energy() can return: three colors, each with a gradient
+  // of at most 4 * 255 in x and in y
+  private static final int MAX_ENERGY = 3 * 2 * (4 * 255) * (4 * 255);
+  // GRAY_STEPS[k] is the smallest energy that mag2gray() maps to k or more
+  private static final int[] GRAY_STEPS = new int[257];
+  // COARSE_GRAY[e >> 10] is mag2gray() of the first energy in that block of 1024
+  private static final short[] COARSE_GRAY = new short[(MAX_ENERGY >> 10) + 1];
+
+  static {
+      for (int k = 0; k < GRAY_STEPS.length; k++) {
+          // mag2gray() never decreases, so binary search for the first energy reaching k
+          int low = 0;
+          int high = MAX_ENERGY + 1;
+          while (low < high) {
+              int mid = (low + high) >>> 1;
+              if (mag2gray(mid) >= k) {
+                  high = mid;
+              } else {
+                  low = mid + 1;
+              }
+          }
+          GRAY_STEPS[k] = low;
+      }
+      for (int b = 0; b < COARSE_GRAY.length; b++) {
+          COARSE_GRAY[b] = mag2gray((long) b << 10);
+      }
+  }
+
+  /**
+   * energy2gray() returns mag2gray(energy) for an energy in the range
+   * 0...MAX_ENERGY without computing a logarithm.
+   *
+   * @param energy the energy of the pixel.
+   * @return the intensity of the output pixel.
+   */
+  static int energy2gray(int energy) {
+      int gray = COARSE_GRAY[energy >> 10];
+      while (energy >= GRAY_STEPS[gray + 1]) {
+          gray++;
+      }
+      return gray;
+  }
+
+  /**
+   * blurSobelEdges() returns the same image as boxBlur(numIterations)
+   * followed by sobelEdges(), but streams the rows through every blur pass
+   * and the Sobel operator at once.  Apart from the output, it only keeps a
+   * few rows per pass, instead of a full intermediate image per pass.  The
+   * edges of a direct image are written straight into a direct result.
+   *
+   * @param numIterations the number of iterations of box blurring.
+   * @return a grayscale PixImage representing the edges of the blurred image.
+   */
+  public PixImage blurSobelEdges(int numIterations) {
+      if (isDirect()) {
+          PixImage edges = sameKind();
+          pushRows(new BlurSobelPipeline(width, height, Math.max(numIterations, 0),
+                                         edges, true));
+          return edges;
+      }
+      return fromGray(blurSobelGray(numIterations));
+  }
+
+  /**
+   * blurSobelGray() works like blurSobelEdges(), but returns the edges as a
+   * GrayImage.
+   *
+   * @param numIterations the number of iterations of box blurring.
+   * @return a GrayImage representing the edges of the blurred image.
+   */
+  public GrayImage blurSobelGray(int numIterations) {
+      GrayImage edges = new GrayImage(width, height);
+      pushRows(new BlurSobelPipeline(width, height, Math.max(numIterations, 0),
+                                     edges.data()));
+      return edges;
+  }
+
+  /*
+  pushRows feeds every row of this image, as three planes, through a pipeline
+   */
+  private void pushRows(BlurSobelPipeline pipeline) {
+      int[] packed = new int[width];
+      int[] row = new int[3 * width];
+      for (int j = 0; j < height; j++) {
+          readRow(j, packed, 0);
+          for (int i = 0; i < width; i++) {
+              int rgb = packed[i];
+              row[i] = (rgb >> 16) & 0xFF;
+              row[width + i] = (rgb >> 8) & 0xFF;
+              row[2 * width + i] = rgb & 0xFF;
+          }
+          pipeline.push(row);
+      }
+      pipeline.finish();
+  }
+
+  // compute energy of pixel x of a row, given as three planes, with the rows above and below;
+  // columns off the image mirror the nearest edge pixel
+  private int energy(int x, int[] above, int[] row, int[] below){
+      int left = Math.max(x - 1, 0);
+      int right = Math.min(x + 1, width - 1);
       int result = 0;
-      for(int c = 0; c < 3; c++) {
-          gx[c] = pic.matrixRGB[x - 1][y - 1][c] - pic.matrixRGB[x + 1][y - 1][c] + 2 * pic.matrixRGB[x - 1][y][c] - 2 * pic.matrixRGB[x + 1][y][c] + pic.matrixRGB[x - 1][y + 1][c] - pic.matrixRGB[x + 1][y + 1][c];
-          gy[c] = pic.matrixRGB[x - 1][y - 1][c] + 2 * pic.matrixRGB[x][y - 1][c] + pic.matrixRGB[x + 1][y - 1][c] - pic.matrixRGB[x - 1][y + 1][c] - 2 * pic.matrixRGB[x][y + 1][c] - pic.matrixRGB[x + 1][y + 1][c];
-          result += gx[c]*gx[c] + gy[c]*gy[c];
+      for(int c = 0; c < 3 * width; c += width) {
+          int gx = above[c + left] - above[c + right] + 2 * row[c + left] - 2 * row[c + right] +
+                   below[c + left] - below[c + right];
+          int gy = above[c + left] + 2 * above[c + x] + above[c + right] -
+                   below[c + left] - 2 * below[c + x] - below[c + right];
+          result += gx*gx + gy*gy;
       }
-      return (long) result;
+      return result;
   }
   /**
    * TEST CODE
@@ -305,6 +1114,65 @@ public class PixImage {
     }
   }
 
+  /**
+   * throwsIllegalState() returns true if reading a pixel of image throws
+   * IllegalStateException, as it must once the image has been released.
+   */
+  private static boolean throwsIllegalState(PixImage image) {
+    try {
+      image.getRed(0, 0);
+      return false;
+    } catch (IllegalStateException e) {
+      return true;
+    }
+  }
+
+  /**
+   * offTiled() returns true if getRed() and setPixel() on a tiled image both
+   * throw IndexOutOfBoundsException at (x, y).
+   */
+  private static boolean offTiled(TiledPixImage image, int x, int y) {
+    boolean readFails = false;
+    try {
+      image.getRed(x, y);
+    } catch (IndexOutOfBoundsException e) {
+      readFails = true;
+    }
+    try {
+      image.setPixel(x, y, (short) 1, (short) 1, (short) 1);
+      return false;
+    } catch (IndexOutOfBoundsException e) {
+      return readFails;
+    }
+  }
+
+  /**
+   * throwsUnsupported() returns true if asIntBuffer() on image throws
+   * UnsupportedOperationException, as it must for a segmented image.
+   */
+  private static boolean throwsUnsupported(PixImage image) {
+    try {
+      image.asIntBuffer();
+      return false;
+    } catch (UnsupportedOperationException e) {
+      return true;
+    }
+  }
+
+  /**
+   * throwsIllegalArgument() returns true if allocateDirect() refuses a
+   * width x height image with IllegalArgumentException.
+   */
+  private static boolean throwsIllegalArgument(int width, int height) {
+    try {
+      allocateDirect(width, height);
+      return false;
+    } catch (IllegalArgumentException e) {
+      return true;
+    }
+  }
+
+
   /**
    * array2PixImage() converts a 2D array of grayscale intensities to
    * a grayscale PixImage.
@@ -416,5 +1284,178 @@ public class PixImage {
            array2PixImage(new int[][] { { 122, 143, 74 },
                                         { 74, 143, 122 } })),
            "Incorrect Sobel:\n" + image2.sobelEdges());
+    GrayImage gray2 = image2.sobelGray();
+    doTest(gray2.getGray(0, 0) == 122 && gray2.getGray(1, 1) == 143 &&
+           gray2.getGray(1, 2) == 122,
+           "Incorrect grayscale Sobel:\n" + gray2);
+
+
+    PixImage image3 = new PixImage(300, 200);
+    for (int x = 0; x < 300; x++) {
+      for (int y = 0; y < 200; y++) {
+        image3.setPixel(x, y, (short) ((x * y) % 256), (short) ((x + y) % 256),
+                        (short) ((x * 7 + y * 3) % 256));
+      }
+    }
+    int oldThreshold = RowBands.getThreshold();
+    // a pool of four workers, so the bands really run in parallel even on a
+    // machine whose common pool has one
+    ForkJoinPool oldPool = RowBands.getPool();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    RowBands.setThreshold(Integer.MAX_VALUE);
+    PixImage blurSequential = image3.boxBlur(3);
+    PixImage sobelSequential = image3.sobelEdges();
+    RowBands.setPool(pool);
+    RowBands.setThreshold(1);
+    System.out.println("Testing parallel blurring on a 300x200 image.");
+    doTest(image3.boxBlur(3).equals(blurSequential),
+           "Parallel box blur differs from sequential box blur.");
+    System.out.println("Testing parallel edge detection on a 300x200 image.");
+    doTest(image3.sobelEdges().equals(sobelSequential),
+           "Parallel Sobel differs from sequential Sobel.");
+    RowBands.setThreshold(oldThreshold);
+
+    System.out.println("Testing fused blur and edge detection.");
+    doTest(image1.blurSobelEdges(2).equals(image1.boxBlur(2).sobelEdges()) &&
+           image3.blurSobelEdges(3).equals(image3.boxBlur(3).sobelEdges()),
+           "blurSobelEdges() differs from boxBlur() then sobelEdges().");
+
+    // six tiles, but room for only one, so every tile is evicted and written
+    // back while the filters run
+    PixImage image5 = new PixImage(600, 300);
+    TiledPixImage tiled5 = new TiledPixImage(600, 300, 1);
+    for (int x = 0; x < 600; x++) {
+      for (int y = 0; y < 300; y++) {
+        short red = (short) ((x * y) % 256);
+        short green = (short) ((x + y) % 256);
+        short blue = (short) ((x * 7 + y * 3) % 256);
+        image5.setPixel(x, y, red, green, blue);
+        tiled5.setPixel(x, y, red, green, blue);
+      }
+    }
+    System.out.println("Testing a tiled 600x300 image with one cached tile.");
+    TiledPixImage tiledBlur = tiled5.boxBlur(3);
+    TiledPixImage tiledSobel = tiled5.sobelEdges();
+    doTest(tiled5.toPixImage().equals(image5) &&
+           tiledBlur.toPixImage().equals(image5.boxBlur(3)) &&
+           tiledSobel.toPixImage().equals(image5.sobelEdges()),
+           "Tiled image differs from PixImage.");
+    System.out.println("Testing a tiled 600x300 image off its edges.");
+    doTest(offTiled(tiled5, 600, 0) && offTiled(tiled5, 0, 300) &&
+           offTiled(tiled5, -1, 5) && offTiled(tiled5, 5, -1) &&
+           tiled5.toPixImage().equals(image5),
+           "Tiled image accepts a pixel off the image.");
+    tiledBlur.close();
+    tiledSobel.close();
+    tiled5.close();
+
+    PixImage direct3 = PixImage.allocateDirect(300, 200);
+    direct3.asIntBuffer().put(image3.asIntBuffer());
+    System.out.println("Testing an off-heap 300x200 image.");
+    doTest(direct3.isDirect() && direct3.equals(image3) &&
+           direct3.boxBlur(2).isDirect() &&
+           direct3.boxBlur(2).equals(image3.boxBlur(2)) &&
+           direct3.sobelEdges().equals(sobelSequential) &&
+           direct3.blurSobelEdges(1).equals(image3.blurSobelEdges(1)),
+           "Off-heap image differs from on-heap image.");
+    // seven rows a segment, so rows, bands and halos all cross segments
+    PixImage segmented3 = PixImage.allocateDirect(300, 200, 7);
+    for (int y = 0; y < 200; y++) {
+      segmented3.rowBuffer(y).put(image3.rowBuffer(y));
+    }
+    System.out.println("Testing an off-heap 300x200 image of 29 segments.");
+    doTest(segmented3.equals(image3) &&
+           segmented3.boxBlur(2).equals(image3.boxBlur(2)) &&
+           segmented3.sobelEdges().isDirect() &&
+           segmented3.sobelEdges().equals(sobelSequential) &&
+           segmented3.blurSobelEdges(2).isDirect() &&
+           segmented3.blurSobelEdges(2).equals(image3.blurSobelEdges(2)) &&
+           segmented3.boxBlurRadius(5).isDirect() &&
+           segmented3.boxBlurRadius(5).equals(image3.boxBlurRadius(5)) &&
+           segmented3.getRegionSum(GREEN, 13, 5, 250, 190) ==
+               image3.getRegionSum(GREEN, 13, 5, 250, 190) &&
+           segmented3.convolve(ConvolutionKernel.sharpen(),
+                               ConvolutionKernel.EdgeMode.MIRROR)
+                     .equals(image3.convolve(ConvolutionKernel.sharpen(),
+                                             ConvolutionKernel.EdgeMode.MIRROR)),
+           "Segmented off-heap image differs from on-heap image.");
+    doTest(throwsUnsupported(segmented3),
+           "A segmented image has a single IntBuffer.");
+    doTest(throwsIllegalArgument(Integer.MAX_VALUE / 4 + 1, 1),
+           "allocateDirect() accepts a row too wide for one buffer.");
+    direct3.release();
+    doTest(throwsIllegalState(direct3),
+           "Released image can still be used.");
+
+    // tall enough for convolve() to work on a direct image in several bands
+    PixImage image4 = new PixImage(4, 40000);
+    PixImage direct4 = PixImage.allocateDirect(4, 40000);
+    for (int x = 0; x < 4; x++) {
+      for (int y = 0; y < 40000; y++) {
+        image4.setPixel(x, y, (short) ((x * y) % 256), (short) ((x + y) % 256),
+                        (short) ((y / 7) % 256));
+      }
+    }
+    direct4.asIntBuffer().put(image4.asIntBuffer());
+    System.out.println("Testing banded filters on an off-heap 4x40000 image.");
+    doTest(direct4.convolve(ConvolutionKernel.gaussian3(),
+                            ConvolutionKernel.EdgeMode.NEIGHBOR_COUNT)
+                  .equals(image4.convolve(ConvolutionKernel.gaussian3(),
+                                          ConvolutionKernel.EdgeMode.NEIGHBOR_COUNT)) &&
+           direct4.convolve(ConvolutionKernel.sharpen(), ConvolutionKernel.EdgeMode.MIRROR)
+                  .equals(image4.convolve(ConvolutionKernel.sharpen(),
+                                          ConvolutionKernel.EdgeMode.MIRROR)) &&
+           direct4.boxBlur(3).equals(image4.boxBlur(3)),
+           "Banded off-heap filters differ from on-heap filters.");
+    RowBands.setPool(oldPool);
+    pool.shutdown();
+
+    System.out.println("Testing region sums and radius blurring.");
+    doTest(image1.getRegionSum(RED, 0, 0, 3, 3) == 1235 &&
+           image1.getRegionSum(GREEN, 1, 1, 2, 2) == 875 &&
+           image1.boxBlurRadius(1).equals(image1.boxBlur(1)) &&
+           image3.boxBlurRadius(1).equals(image3.boxBlur(1)),
+           "Incorrect region sums or radius blur.");
+    image1.setPixel(0, 0, (short) 100, (short) 100, (short) 100);
+    doTest(image1.getRegionSum(BLUE, 0, 0, 1, 1) == 100,
+           "Region sums not updated after setPixel().");
+
+    System.out.println("Testing convolution kernels.");
+    ConvolutionKernel cross = new ConvolutionKernel(new int[][] { { 0, 1, 0 },
+                                                                  { 1, 1, 1 },
+                                                                  { 0, 1, 0 } }, 5);
+    doTest(ConvolutionKernel.box(1).isSeparable() &&
+           ConvolutionKernel.gaussian3().isSeparable() &&
+           !ConvolutionKernel.sharpen().isSeparable() && !cross.isSeparable() &&
+           image3.convolve(ConvolutionKernel.box(1),
+                           ConvolutionKernel.EdgeMode.NEIGHBOR_COUNT)
+                 .equals(image3.boxBlur(1)) &&
+           image3.convolve(new ConvolutionKernel(new int[][] { { 1, 1, 1 },
+                                                               { 1, 1, 1 },
+                                                               { 1, 1, 2 } }, 10),
+                           ConvolutionKernel.EdgeMode.MIRROR).getWidth() == 300 &&
+           image2.convolve(cross, ConvolutionKernel.EdgeMode.MIRROR)
+                 .equals(array2PixImage(new int[][] { { 20, 60, 100 },
+                                                      { 0, 40, 80 } })),
+           "Incorrect convolution.");
+
+    System.out.println("Testing a separable kernel with large weights.");
+    // a row sum of 255 * (10000000 + 2) does not fit in an int
+    int[] heavyRow = { 1, 10000000, 1 };
+    ConvolutionKernel heavy =
+        new ConvolutionKernel(new int[][] { heavyRow, heavyRow, heavyRow },
+                              3 * (10000000 + 2));
+    PixImage white = new PixImage(5, 4);
+    PixImage directWhite = PixImage.allocateDirect(5, 4);
+    for (int x = 0; x < 5; x++) {
+      for (int y = 0; y < 4; y++) {
+        white.setPixel(x, y, (short) 255, (short) 255, (short) 255);
+        directWhite.setPixel(x, y, (short) 255, (short) 255, (short) 255);
+      }
+    }
+    doTest(heavy.isSeparable() &&
+           white.convolve(heavy, ConvolutionKernel.EdgeMode.MIRROR).equals(white) &&
+           directWhite.convolve(heavy, ConvolutionKernel.EdgeMode.MIRROR).equals(white),
+           "Separable convolution overflows with large weights.");
   }
 }
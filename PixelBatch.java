@@ -0,0 +1,96 @@
+/* PixelBatch.java */
+
+import java.util.Arrays;
+
+/**
+ *  The PixelBatch class collects pixel changes to apply to a
+ *  RunLengthEncoding all at once with RunLengthEncoding.setPixels().  The
+ *  changes may come in any order.  If a pixel is set more than once, the
+ *  last change wins, as if setPixel() had been called for each change in
+ *  turn.
+ */
+public class PixelBatch {
+
+  private int[] xs = new int[16];
+  private int[] ys = new int[16];
+  private int[] colors = new int[16];
+  private int size;
+
+  /**
+   *  setPixel() records that the pixel at coordinate (x, y) should get the
+   *  specified red, green, and blue intensities.  If any of the intensities is
+   *  NOT in the range 0...255, the change is ignored.
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   *  @param red the new red intensity for the pixel at coordinate (x, y).
+   *  @param green the new green intensity for the pixel at coordinate (x, y).
+   *  @param blue the new blue intensity for the pixel at coordinate (x, y).
+   */
+  public void setPixel(int x, int y, short red, short green, short blue) {
+    if (!PixImage.inRange(red, green, blue)) {
+      return;
+    }
+    if (size == xs.length) {
+      xs = Arrays.copyOf(xs, 2 * size);
+      ys = Arrays.copyOf(ys, 2 * size);
+      colors = Arrays.copyOf(colors, 2 * size);
+    }
+    xs[size] = x;
+    ys[size] = y;
+    colors[size] = PixImage.pack(red, green, blue);
+    size++;
+  }
+
+  /**
+   *  size() returns the number of changes recorded so far.
+   *
+   *  @return the number of changes.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   *  clear() forgets every recorded change, so the batch can be reused.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   *  sorted() returns the changes for an image of the given width as pixel
+   *  numbers (y * width + x) in increasing order, with only the last change
+   *  kept for each pixel.  The colors go into the second array.
+   *
+   *  @return { positions, colors }, both with one entry per distinct pixel
+   *  changed.
+   */
+  int[][] sorted(int width, int height) {
+    // sort by pixel and then by order of arrival, so the last change is last
+    long[] keys = new long[size];
+    for (int k = 0; k < size; k++) {
+      if (xs[k] < 0 || xs[k] >= width || ys[k] < 0 || ys[k] >= height) {
+        throw new IndexOutOfBoundsException("(" + xs[k] + ", " + ys[k] +
+                                            ") is off the image");
+      }
+      keys[k] = ((long) (ys[k] * width + xs[k]) << 32) | k;
+    }
+    Arrays.sort(keys);
+    int[] positions = new int[size];
+    int[] rgb = new int[size];
+    int n = 0;
+    for (int k = 0; k < size; k++) {
+      int position = (int) (keys[k] >>> 32);
+      int color = colors[(int) keys[k]];
+      if (n > 0 && positions[n - 1] == position) {
+        rgb[n - 1] = color;
+      } else {
+        positions[n] = position;
+        rgb[n] = color;
+        n++;
+      }
+    }
+    return new int[][] { Arrays.copyOf(positions, n), Arrays.copyOf(rgb, n) };
+  }
+}
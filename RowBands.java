@@ -0,0 +1,118 @@
+/* RowBands.java */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  The RowBands class runs image work that is independent from one row to
+ *  the next on a ForkJoinPool.  The rows are split into bands of consecutive
+ *  rows and each band is handed to a Band.  A Band may read the row just
+ *  above and just below its range (a one-pixel halo) from a shared input,
+ *  but must only write its own rows, so the result is the same as running
+ *  a single band over every row.
+ *
+ *  Images smaller than the threshold (in pixels) run on the calling thread,
+ *  so thumbnails do not pay for task scheduling.
+ */
+public class RowBands {
+
+  /**
+   *  A Band processes rows fromRow...toRow - 1.
+   */
+  interface Band {
+    void run(int fromRow, int toRow);
+  }
+
+  private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+  private static volatile int threshold = 1 << 16;
+
+  /**
+   *  setPool() chooses the ForkJoinPool that runs the bands.
+   *
+   *  @param pool the pool to use from now on.
+   */
+  public static void setPool(ForkJoinPool pool) {
+    if (pool == null) {
+      throw new IllegalArgumentException("pool is null");
+    }
+    RowBands.pool = pool;
+  }
+
+  /**
+   *  getPool() returns the ForkJoinPool that runs the bands.
+   *
+   *  @return the pool in use.
+   */
+  public static ForkJoinPool getPool() {
+    return pool;
+  }
+
+  /**
+   *  setThreshold() sets the number of pixels below which work stays on the
+   *  calling thread.  Integer.MAX_VALUE turns parallel execution off.
+   *
+   *  @param pixels the smallest number of pixels worth splitting into bands.
+   */
+  public static void setThreshold(int pixels) {
+    threshold = Math.max(pixels, 1);
+  }
+
+  /**
+   *  getThreshold() returns the number of pixels below which work stays on
+   *  the calling thread.
+   *
+   *  @return the current threshold in pixels.
+   */
+  public static int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   *  run() runs band over rows 0...rows - 1, in parallel when the image is
+   *  large enough, and returns when every row is done.
+   *
+   *  @param rows the number of rows.
+   *  @param rowWidth the number of pixels in a row.
+   *  @param band the work to do.
+   */
+  static void run(int rows, int rowWidth, Band band) {
+    ForkJoinPool pool = RowBands.pool;
+    int threshold = RowBands.threshold;
+    long pixels = (long) rows * rowWidth;
+    if (pixels < threshold || rows < 2 || pool.getParallelism() < 2) {
+      band.run(0, rows);
+      return;
+    }
+    // aim for a few bands per worker, but never bands below the threshold
+    int minRows = Math.max(1, threshold / Math.max(rowWidth, 1));
+    int grain = Math.max(minRows, rows / (4 * pool.getParallelism()));
+    pool.invoke(new BandTask(band, 0, rows, grain));
+  }
+
+  private static class BandTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Band band;
+    private final int fromRow;
+    private final int toRow;
+    private final int grain;
+
+    BandTask(Band band, int fromRow, int toRow, int grain) {
+      this.band = band;
+      this.fromRow = fromRow;
+      this.toRow = toRow;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (toRow - fromRow <= grain) {
+        band.run(fromRow, toRow);
+      } else {
+        int mid = (fromRow + toRow) >>> 1;
+        invokeAll(new BandTask(band, fromRow, mid, grain),
+                  new BandTask(band, mid, toRow, grain));
+      }
+    }
+  }
+}
@@ -0,0 +1,21 @@
+/* RunConsumer.java */
+
+/**
+ *  The RunConsumer interface receives the runs of a RunLengthEncoding, one
+ *  call per run, from RunLengthEncoding.forEachRun() or
+ *  RunIterator.forEachRun().  The run is passed as four ints, so no array is
+ *  allocated per run.
+ */
+@FunctionalInterface
+public interface RunConsumer {
+
+  /**
+   *  accept() receives one run.
+   *
+   *  @param runLength the number of pixels in the run.
+   *  @param red the red intensity of the run.
+   *  @param green the green intensity of the run.
+   *  @param blue the blue intensity of the run.
+   */
+  void accept(int runLength, int red, int green, int blue);
+}
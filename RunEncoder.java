@@ -0,0 +1,82 @@
+/* RunEncoder.java */
+
+import java.util.Arrays;
+
+/**
+ *  The RunEncoder class collects the runs of a stretch of pixels, such as a
+ *  band of rows of a PixImage, as packed 0x00RRGGBB colors and lengths in
+ *  two growable int arrays.  A pixel or run of the same color as the last
+ *  run is merged into it, so consecutive runs always differ in color.
+ *
+ *  Encoders for neighboring stretches can be filled separately, on
+ *  different threads, and then stitched together in order with appendTo(),
+ *  which merges the runs that meet at a seam if they have the same color.
+ */
+class RunEncoder {
+
+  private int[] rgb = new int[16];
+  private int[] lengths = new int[16];
+  private int count;
+
+  /**
+   *  add() adds count pixels of src, starting at srcOffset, after the runs
+   *  collected so far.
+   */
+  void add(int[] src, int srcOffset, int count) {
+    int end = srcOffset + count;
+    int i = srcOffset;
+    while (i < end) {
+      int color = src[i];
+      int start = i;
+      i++;
+      while (i < end && src[i] == color) {
+        i++;
+      }
+      addRun(color, i - start);
+    }
+  }
+
+  /**
+   *  addRun() adds a run after the runs collected so far.
+   */
+  void addRun(int color, int length) {
+    if (length <= 0) {
+      return;
+    }
+    if (count > 0 && rgb[count - 1] == color) {
+      lengths[count - 1] += length;
+      return;
+    }
+    if (count == rgb.length) {
+      rgb = Arrays.copyOf(rgb, 2 * count);
+      lengths = Arrays.copyOf(lengths, 2 * count);
+    }
+    rgb[count] = color;
+    lengths[count] = length;
+    count++;
+  }
+
+  /**
+   *  clear() forgets the runs collected, keeping the arrays for reuse.
+   */
+  void clear() {
+    count = 0;
+  }
+
+  /**
+   *  size() returns the number of runs collected.
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   *  appendTo() adds the runs collected to the end of a RunStore, merging
+   *  the first one into the store's last run if they have the same color.
+   */
+  void appendTo(RunStore runs) {
+    for (int k = 0; k < count; k++) {
+      runs.extend(rgb[k], lengths[k]);
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/* RunFile.java */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  The RunFile class stores a RunLengthEncoding in a compact binary file and
+ *  reads it back.  A RunFile returned by open() maps the file into memory
+ *  and reads runs straight out of the mapping, so opening a file costs
+ *  almost nothing, and single pixels can be read without loading the runs.
+ *
+ *  The file is little-endian and laid out as follows.
+ *
+ *    header      the int MAGIC, then the width, the height, the number of
+ *                runs, the seek interval N, the palette size P (zero if there
+ *                is no palette) and the offset of the seek table, all ints.
+ *    palette     P colors of three bytes each, red, green, blue.
+ *    runs        each run is its length as a varint (seven bits a byte, low
+ *                bits first, the high bit set on every byte but the last),
+ *                then its color: a one-byte palette index if there is a
+ *                palette, or else three bytes, red, green, blue.
+ *    seek table  for every N-th run, starting with run zero, the offset of
+ *                the run in the file and the number of its first pixel, as
+ *                two ints.
+ *
+ *  An image with at most 256 colors gets a palette.  Files are limited to
+ *  2GB, the most that can be mapped at once.
+ */
+public class RunFile {
+
+  /** The first four bytes of every run file: "RLE1". */
+  public static final int MAGIC = 0x31454C52;
+
+  private static final int HEADER_BYTES = 28;
+  private static final int DEFAULT_SEEK_INTERVAL = 64;
+  private static final int MAX_PALETTE = 256;
+
+  private ByteBuffer file;
+  private int width;
+  private int height;
+  private int runCount;
+  private int seekInterval;
+  private int paletteSize;
+  private int[] palette;
+  private int runsAt;
+  private int seekAt;
+
+  private RunFile(ByteBuffer file) throws IOException {
+    this.file = file;
+    if (file.limit() < HEADER_BYTES || file.getInt(0) != MAGIC) {
+      throw new IOException("not a run file");
+    }
+    width = file.getInt(4);
+    height = file.getInt(8);
+    runCount = file.getInt(12);
+    seekInterval = file.getInt(16);
+    paletteSize = file.getInt(20);
+    seekAt = file.getInt(24);
+    runsAt = HEADER_BYTES + 3 * paletteSize;
+    int seeks = runCount == 0 ? 0 : (runCount - 1) / seekInterval + 1;
+    if (width < 0 || height < 0 || runCount < 0 || seekInterval <= 0 ||
+        paletteSize < 0 || paletteSize > MAX_PALETTE || seekAt < runsAt ||
+        (long) seekAt + 8L * seeks > file.limit()) {
+      throw new IOException("damaged run file");
+    }
+    palette = new int[paletteSize];
+    for (int i = 0; i < paletteSize; i++) {
+      palette[i] = color(HEADER_BYTES + 3 * i);
+    }
+  }
+
+  /**
+   *  write() saves a run-length encoding to a file, with a seek table entry
+   *  every 64 runs.
+   *
+   *  @param rle the encoding to save.
+   *  @param filename the name of the file to write.
+   *  @throws UncheckedIOException if the file cannot be written.
+   */
+  public static void write(RunLengthEncoding rle, String filename) {
+    write(rle, filename, DEFAULT_SEEK_INTERVAL);
+  }
+
+  /**
+   *  write() saves a run-length encoding to a file, with a seek table entry
+   *  every seekInterval runs.  A shorter interval makes getPixel() faster
+   *  and the file bigger.
+   *
+   *  @param rle the encoding to save.
+   *  @param filename the name of the file to write.
+   *  @param seekInterval the number of runs between seek table entries.
+   *  @throws UncheckedIOException if the file cannot be written.
+   */
+  public static void write(RunLengthEncoding rle, String filename, int seekInterval) {
+    if (seekInterval <= 0) {
+      throw new IllegalArgumentException("seek interval must be positive");
+    }
+    // the first pass counts the runs and finds the colors, if there are few
+    HashMap<Integer, Integer> indices = new HashMap<Integer, Integer>();
+    int runCount = 0;
+    for (RunIterator run = rle.iterator(); run.advance(); runCount++) {
+      if (indices.size() <= MAX_PALETTE && !indices.containsKey(run.rgb())) {
+        indices.put(run.rgb(), indices.size());
+      }
+    }
+    int paletteSize = indices.size() <= MAX_PALETTE ? indices.size() : 0;
+    int seeks = runCount == 0 ? 0 : (runCount - 1) / seekInterval + 1;
+    int[] seekOffsets = new int[seeks];
+    int[] seekPixels = new int[seeks];
+    try (FileChannel out = FileChannel.open(Paths.get(filename),
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.TRUNCATE_EXISTING,
+                                            StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+      long position = HEADER_BYTES;
+      out.position(position);
+      if (paletteSize > 0) {
+        int[] colors = new int[paletteSize];
+        for (Map.Entry<Integer, Integer> entry : indices.entrySet()) {
+          colors[entry.getValue()] = entry.getKey();
+        }
+        for (int color : colors) {
+          position += flushIfFull(out, buffer);
+          putColor(buffer, color);
+        }
+      }
+      long pixel = 0;
+      int k = 0;
+      for (RunIterator run = rle.iterator(); run.advance(); k++) {
+        position += flushIfFull(out, buffer);
+        if (k % seekInterval == 0) {
+          seekOffsets[k / seekInterval] = checkedInt(position + buffer.position());
+          seekPixels[k / seekInterval] = checkedInt(pixel);
+        }
+        int length = run.runLength();
+        while ((length & ~0x7F) != 0) {
+          buffer.put((byte) ((length & 0x7F) | 0x80));
+          length >>>= 7;
+        }
+        buffer.put((byte) length);
+        if (paletteSize > 0) {
+          buffer.put((byte) (int) indices.get(run.rgb()));
+        } else {
+          putColor(buffer, run.rgb());
+        }
+        pixel += run.runLength();
+      }
+      int seekAt = checkedInt(position + buffer.position());
+      for (int s = 0; s < seeks; s++) {
+        position += flushIfFull(out, buffer);
+        buffer.putInt(seekOffsets[s]).putInt(seekPixels[s]);
+      }
+      position += flush(out, buffer);
+      checkedInt(position);
+      buffer.putInt(MAGIC).putInt(rle.getWidth()).putInt(rle.getHeight());
+      buffer.putInt(runCount).putInt(seekInterval).putInt(paletteSize).putInt(seekAt);
+      out.position(0);
+      flush(out, buffer);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /*
+  flushIfFull writes out the buffer when it may not have room for another
+  record, and returns the number of bytes written
+   */
+  private static int flushIfFull(FileChannel out, ByteBuffer buffer) throws IOException {
+    return buffer.remaining() < 16 ? flush(out, buffer) : 0;
+  }
+
+  private static int flush(FileChannel out, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    int bytes = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+    return bytes;
+  }
+
+  private static void putColor(ByteBuffer buffer, int rgb) {
+    buffer.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+  }
+
+  private static int checkedInt(long value) throws IOException {
+    if (value > Integer.MAX_VALUE) {
+      throw new IOException("run files are limited to 2GB");
+    }
+    return (int) value;
+  }
+
+  /**
+   *  open() maps a run file into memory.  Nothing is decoded until runs or
+   *  pixels are asked for.
+   *
+   *  @param filename the name of the file to read.
+   *  @return a RunFile that reads from the file.
+   *  @throws UncheckedIOException if the file cannot be read or is not a run
+   *  file.
+   */
+  public static RunFile open(String filename) {
+    try (FileChannel in = FileChannel.open(Paths.get(filename),
+                                           StandardOpenOption.READ)) {
+      if (in.size() > Integer.MAX_VALUE) {
+        throw new IOException("run files are limited to 2GB");
+      }
+      ByteBuffer file = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      return new RunFile(file.order(ByteOrder.LITTLE_ENDIAN));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   *  getWidth() returns the width of the image.
+   *
+   *  @return the width of the image.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   *  getHeight() returns the height of the image.
+   *
+   *  @return the height of the image.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   *  getRunCount() returns the number of runs in the file.
+   *
+   *  @return the number of runs.
+   */
+  public int getRunCount() {
+    return runCount;
+  }
+
+  /**
+   *  forEachRun() passes every run, in order, to a RunConsumer, reading them
+   *  straight from the mapped file.
+   *
+   *  @param action the RunConsumer that receives the runs.
+   */
+  public void forEachRun(RunConsumer action) {
+    Cursor run = new Cursor(runsAt);
+    for (int k = 0; k < runCount; k++) {
+      run.next();
+      action.accept(run.length, (run.rgb >> 16) & 0xFF, (run.rgb >> 8) & 0xFF,
+                    run.rgb & 0xFF);
+    }
+  }
+
+  /**
+   *  getPixel() returns the color of the pixel at coordinate (x, y), packed
+   *  as 0x00RRGGBB.  It finds the last seek table entry at or before the
+   *  pixel by binary search and reads at most one interval of runs from
+   *  there.
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   *  @return the packed red, green, and blue intensities of the pixel.
+   */
+  public int getPixel(int x, int y) {
+    if (x < 0 || x >= width || y < 0 || y >= height) {
+      throw new IndexOutOfBoundsException("(" + x + ", " + y + ") is off the image");
+    }
+    int position = y * width + x;
+    int lo = 0;
+    int hi = (runCount - 1) / seekInterval;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (file.getInt(seekAt + 8 * mid + 4) <= position) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    Cursor run = new Cursor(file.getInt(seekAt + 8 * lo));
+    int end = file.getInt(seekAt + 8 * lo + 4);
+    do {
+      run.next();
+      end += run.length;
+    } while (position >= end);
+    return run.rgb;
+  }
+
+  /**
+   *  toRunLengthEncoding() loads every run into a RunLengthEncoding.
+   *
+   *  @return the encoding stored in the file.
+   */
+  public RunLengthEncoding toRunLengthEncoding() {
+    RunStore runs = new RunStore(width, height);
+    Cursor run = new Cursor(runsAt);
+    for (int k = 0; k < runCount; k++) {
+      run.next();
+      runs.extend(run.rgb, run.length);
+    }
+    return new RunLengthEncoding(width, height, runs);
+  }
+
+  /**
+   *  The Cursor class reads runs one after another from the mapped file.
+   *  Each reader has its own Cursor, so several threads may read one
+   *  RunFile at once.
+   */
+  private class Cursor {
+    // the offset of the next run, and the length and color of the last one read
+    int at;
+    int length;
+    int rgb;
+
+    Cursor(int at) {
+      this.at = at;
+    }
+
+    void next() {
+      length = 0;
+      for (int shift = 0; ; shift += 7) {
+        int b = file.get(at++);
+        length |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          break;
+        }
+      }
+      if (paletteSize > 0) {
+        rgb = palette[file.get(at++) & 0xFF];
+      } else {
+        rgb = color(at);
+        at += 3;
+      }
+    }
+  }
+
+  private int color(int at) {
+    return ((file.get(at) & 0xFF) << 16) | ((file.get(at + 1) & 0xFF) << 8) |
+           (file.get(at + 2) & 0xFF);
+  }
+}
@@ -19,6 +19,12 @@
  *  again, construct a new RunIterator by invoking iterator() on the
  *  RunLengthEncoding and throw the old RunIterator away.
  *
+ *  For loops over many runs, a RunIterator is also a cursor that allocates
+ *  nothing: each call to advance() moves to the next run, whose length and
+ *  intensities are then read with runLength(), red(), green(), and blue().
+ *  forEachRun() hands every remaining run to a RunConsumer.  advance() and
+ *  next() share one position, so they may be mixed.
+ *
  *  A RunIterator is not guaranteed to work if the underlying RunLengthEncoding
  *  is modified after the RunIterator is constructed.  (Especially if it is
  *  modified by setPixel().)
@@ -31,27 +37,27 @@
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
-@SuppressWarnings("rawtypes")
-public class RunIterator implements Iterator {
+public class RunIterator implements Iterator<int[]> {
 
- 
-  private DList list;
-  private DListNode node;
-  private DListNode current;
+  private RunStore runs;
+  private RunStore.Chunk chunk;
+  private int chunkIndex;
   private int index;
+  private int returned;
+  // the run that advance() moved to
+  private int length;
+  private int rgb;
 
 
 
   /**
-   *  RunIterator() constructs a new iterator starting with a specified run.
+   *  RunIterator() constructs a new iterator starting with the first run.
    *
-   *  @param node the run where this iterator starts.
+   *  @param runs the runs to iterate through.
    */
-  
-  public RunIterator(DList list,DListNode node) {
-    this.list = list;
-    this.node = node;
-    this.current = node;
+  RunIterator(RunStore runs) {
+    this.runs = runs;
+    this.chunk = runs.chunkCount() > 0 ? runs.chunk(0) : null;
   }
 
   /**
@@ -61,7 +67,7 @@ public class RunIterator implements Iterator {
    *  @return true if the iterator has more elements.
    */
   public boolean hasNext() {
-    return index < list.getSize();
+    return returned < runs.size();
   }
 
   /**
@@ -82,37 +88,84 @@ public class RunIterator implements Iterator {
    *
    */
   public int[] next() {
-    int[] dot = new int[4];
-    dot[0] = current.repeat;
-    dot[1] = current.red;
-    dot[2] = current.green;
-    dot[3] = current.blue;
-    if(!hasNext()) {
+    if(!advance()) {
       throw new NoSuchElementException();
     }
-      current = current.next;
-      index++;
+    int[] dot = new int[4];
+    dot[0] = length;
+    dot[1] = red();
+    dot[2] = green();
+    dot[3] = blue();
     return dot;
   }
 
-  public int[] pre() {
-
-    if(hasNext()) {
-      current = current.prev;
-      int[] dot = new int[4];
-      dot[0] = node.repeat;
-      dot[1] = node.red;
-      dot[2] = node.green;
-      dot[3] = node.blue;
-      return dot;
-    } else{
-      System.out.print("error!");
-      throw new NoSuchElementException();
+  /**
+   *  advance() moves the cursor to the next run, if there is one.
+   *
+   *  @return true if the cursor moved to a run; false if every run has been
+   *  visited.
+   */
+  public boolean advance() {
+    if (!hasNext()) {
+      return false;
+    }
+    if (index == chunk.count) {
+      chunkIndex++;
+      chunk = runs.chunk(chunkIndex);
+      index = 0;
     }
+    rgb = chunk.rgb[index];
+    length = chunk.lengths[index];
+    index++;
+    returned++;
+    return true;
+  }
+
+  /**
+   *  runLength() returns the number of pixels in the run that advance()
+   *  last moved to.
+   *
+   *  @return the length of the current run.
+   */
+  public int runLength() {
+    return length;
+  }
+
+  /**
+   *  red(), green(), and blue() return the intensities of the run that
+   *  advance() last moved to.
+   *
+   *  @return an intensity of the current run.
+   */
+  public int red() {
+    return (rgb >> 16) & 0xFF;
+  }
+
+  public int green() {
+    return (rgb >> 8) & 0xFF;
   }
 
-  public DListNode getNode(){
-    return current;
+  public int blue() {
+    return rgb & 0xFF;
+  }
+
+  /*
+  rgb returns the current run's color, packed as 0x00RRGGBB
+   */
+  int rgb() {
+    return rgb;
+  }
+
+  /**
+   *  forEachRun() passes every run not yet visited to a RunConsumer, in
+   *  order, and leaves the iterator at the end.
+   *
+   *  @param action the RunConsumer that receives the runs.
+   */
+  public void forEachRun(RunConsumer action) {
+    while (advance()) {
+      action.accept(length, red(), green(), blue());
+    }
   }
 
   /**
@@ -125,8 +178,4 @@ public class RunIterator implements Iterator {
     throw new UnsupportedOperationException();
   }
 
-  public void forwardIndex(){
-    index++;
-  }
-
 }
@@ -2,11 +2,35 @@
 @author Xiaowen Wang
 */
 
-public class RunLengthEncoding implements Iterable {
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 
-    private DList rgbValue;
+public class RunLengthEncoding implements Iterable<int[]> {
+
+    private RunStore runs;
     private int width;
     private int height;
+    // when true, the constructors and setPixel() validate the runs with check()
+    private static boolean debug = false;
 
   /**
    *  RunLengthEncoding() (with two parameters) constructs a run-length
@@ -18,10 +42,9 @@ public class RunLengthEncoding implements Iterable {
    */
 
   public RunLengthEncoding(int width, int height) {
-      DList rgbValue = new DList();
-      int repeat = width * height;
-      rgbValue.insertEnd(0,0,0,repeat);
-      this.rgbValue = rgbValue;
+      RunStore runs = new RunStore(width, height);
+      runs.append(0, width * height);
+      this.runs = runs;
       this.width = width;
       this.height = height;
   }
@@ -39,18 +62,35 @@ public class RunLengthEncoding implements Iterable {
    *  @param green is an array that specifies the green intensity of each run.
    *  @param blue is an array that specifies the blue intensity of each run.
    *  @param runLengths is an array that specifies the length of each run.
-   *
+   *  @throws IllegalArgumentException if an intensity is NOT in the range
+   *  0...255.
    */
 
   public RunLengthEncoding(int width, int height, int[] red, int[] green,
                            int[] blue, int[] runLengths) {
-      DList rgbValue = new DList();
+      RunStore runs = new RunStore(width, height);
       for(int i = 0; i < runLengths.length; i++) {
-          rgbValue.insertEnd(red[i],green[i],blue[i],runLengths[i]);
+          if (!PixImage.inRange(red[i], green[i], blue[i])) {
+              throw new IllegalArgumentException("run " + i + " has an intensity " +
+                                                 "outside 0...255");
+          }
+          runs.append(PixImage.pack(red[i], green[i], blue[i]), runLengths[i]);
       }
       this.width = width;
       this.height = height;
-      this.rgbValue = rgbValue;
+      this.runs = runs;
+  }
+
+  /*
+  this constructor takes over runs that already cover width * height pixels
+   */
+  RunLengthEncoding(int width, int height, RunStore runs) {
+      this.width = width;
+      this.height = height;
+      this.runs = runs;
+    if (debug) {
+      check();
+    }
   }
 
   /**
@@ -74,6 +114,136 @@ public class RunLengthEncoding implements Iterable {
     return this.height;
   }
 
+  /**
+   *  getPixel() returns the color of the pixel at coordinate (x, y), packed
+   *  into one int as 0x00RRGGBB, without decoding the image.  The run holding
+   *  the pixel is found in O(log runs) steps; reading pixels in row-major
+   *  order costs O(1) each, since the last run found is remembered.
+   *
+   *  Because of that remembered run, getPixel(), getRed(), getGreen(), and
+   *  getBlue() are NOT safe to call from several threads at once, even
+   *  though they do not change the image.  Threads that read pixels at
+   *  random should each use their own encoding, or synchronize on this one.
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   *  @return the packed red, green, and blue intensities of the pixel.
+   */
+  public int getPixel(int x, int y) {
+    if (x < 0 || x >= width || y < 0 || y >= height) {
+      throw new IndexOutOfBoundsException("(" + x + ", " + y + ") is off the image");
+    }
+    return runs.rgbAt(y * width + x);
+  }
+
+  /**
+   *  getRed() returns the red intensity of the pixel at coordinate (x, y).
+   *  Like getPixel(), it is not thread-safe.
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   *  @return the red intensity of the pixel at coordinate (x, y).
+   */
+  public short getRed(int x, int y) {
+    return (short) ((getPixel(x, y) >> 16) & 0xFF);
+  }
+
+  /**
+   *  getGreen() returns the green intensity of the pixel at coordinate (x, y).
+   *  Like getPixel(), it is not thread-safe.
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   *  @return the green intensity of the pixel at coordinate (x, y).
+   */
+  public short getGreen(int x, int y) {
+    return (short) ((getPixel(x, y) >> 8) & 0xFF);
+  }
+
+  /**
+   *  getBlue() returns the blue intensity of the pixel at coordinate (x, y).
+   *  Like getPixel(), it is not thread-safe.
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   *  @return the blue intensity of the pixel at coordinate (x, y).
+   */
+  public short getBlue(int x, int y) {
+    return (short) (getPixel(x, y) & 0xFF);
+  }
+
+  /**
+   *  statistics() computes the histograms, means, variances, and color
+   *  counts of the image directly from the runs, in O(runs) time.
+   *
+   *  @return the statistics of the image this RunLengthEncoding represents.
+   */
+  public RunStatistics statistics() {
+    return new RunStatistics(runs);
+  }
+
+  /**
+   *  spliterator() returns a RunSpliterator over the runs of this
+   *  RunLengthEncoding, each given as the array of four ints that
+   *  RunIterator.next() returns.  It knows how many runs it holds and splits
+   *  its range of runs exactly in half, so parallel streams divide the work
+   *  evenly.
+   *
+   *  @return a Spliterator over the runs.
+   */
+  public Spliterator<int[]> spliterator() {
+    return new RunSpliterator(runs);
+  }
+
+  /**
+   *  stream() and parallelStream() return a Stream of the runs of this
+   *  RunLengthEncoding, in order, each given as {length, red, green, blue}.
+   *  The encoding must not be changed while the stream is in use.
+   *
+   *  @return a sequential or parallel Stream over the runs.
+   */
+  public Stream<int[]> stream() {
+    return StreamSupport.stream(spliterator(), false);
+  }
+
+  public Stream<int[]> parallelStream() {
+    return StreamSupport.stream(spliterator(), true);
+  }
+
+  /**
+   *  forEachRun() passes every run of this RunLengthEncoding, in order, to a
+   *  RunConsumer, without allocating anything per run.
+   *
+   *  @param action the RunConsumer that receives the runs.
+   */
+  public void forEachRun(RunConsumer action) {
+    iterator().forEachRun(action);
+  }
+
+  /**
+   *  crop() decodes the w x h rectangle whose upper left corner is pixel
+   *  (x, y) into a new PixImage.  Each row of the rectangle is found through
+   *  the row index, so only the runs that overlap the rectangle are read.
+   *
+   *  @param x the x-coordinate of the upper left corner of the rectangle.
+   *  @param y the y-coordinate of the upper left corner of the rectangle.
+   *  @param w the width of the rectangle.
+   *  @param h the height of the rectangle.
+   *  @return a w x h PixImage holding the pixels of the rectangle.
+   */
+  public PixImage crop(int x, int y, int w, int h) {
+    if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+      throw new IndexOutOfBoundsException("rectangle is off the image");
+    }
+    PixImage image = new PixImage(w, h);
+    int[] row = new int[w];
+    for (int j = 0; j < h; j++) {
+      runs.decode(y + j, x, w, row, 0);
+      image.writeRow(j, row, 0);
+    }
+    return image;
+  }
+
   /**
    *  iterator() returns a newly created RunIterator that can iterate through
    *  the runs of this RunLengthEncoding.
@@ -82,79 +252,82 @@ public class RunLengthEncoding implements Iterable {
    *  RunLengthEncoding.
    */
   public RunIterator iterator() {
-    return new RunIterator(rgbValue,rgbValue.head);
+    return new RunIterator(runs);
   }
 
   /**
    *  toPixImage() converts a run-length encoding of an image into a PixImage
-   *  object.
+   *  object.  Each band of rows starts at its first run through the row
+   *  index and fills whole runs at a time, and large images are split into
+   *  bands that are decoded in parallel (see RowBands).
    *
    *  @return the PixImage that this RunLengthEncoding encodes.
    */
   public PixImage toPixImage() {
-      PixImage pic = new PixImage(this.width,this.height);
-      int x = 0;
-      int y = 0;
-      RunIterator run = iterator();
-      while(run.hasNext()){
-          int[] dot = new int[4];
-          dot = run.next();
-          for(int i = 0; i < dot[0]; i++) {
-              pic.setPixel(x,y,(short) dot[1],(short) dot[2], (short) dot[3]);
-              if(x < width){
-                  x++;
-              } if(x == width) {
-                  x = 0;
-                  y++;
-              }
-          }
+      int[] pixels = new int[width * height];
+      if (pixels.length > 0) {
+          runs.buildRows();
+          RowBands.run(height, width, (fromRow, toRow) ->
+              runs.decode(fromRow, 0, (toRow - fromRow) * width, pixels, fromRow * width));
       }
-
-    return pic;
+      return PixImage.wrap(width, height, pixels);
   }
 
 
   public String toString() {
       StringBuilder list = new StringBuilder();
-      for(RunIterator run = iterator(); run.hasNext();){
-          int[] pix = new int[4];
-          pix = run.next();
-          list.append("[" + pix[0] + "," + pix[1] + "," + pix[2] + "," + pix[3] + "]" + " ");
-      }
+      forEachRun((length, red, green, blue) ->
+          list.append("[" + length + "," + red + "," + green + "," + blue + "]" + " "));
     return list.toString();
   }
 
 
   /**
    *  RunLengthEncoding() (with one parameter) is a constructor that creates
-   *  a run-length encoding of a specified PixImage.
+   *  a run-length encoding of a specified PixImage.  Large images are split
+   *  into bands of rows that are encoded in parallel (see RowBands), and
+   *  the bands' runs are then joined in order, merging the runs that meet at
+   *  each seam if they have the same color.
    *  @param image is the PixImage to run-length encode.
    */
   public RunLengthEncoding(PixImage image) {
       this.width = image.getWidth();
       this.height = image.getHeight();
-      short current_red = image.getRed(0,0);
-      short current_green = image.getGreen(0,0);
-      short current_blue = image.getBlue(0,0);
-      DList rgbValue = new DList();
-      int count = 0;
-      for(int j = 0; j < height; j++) {
-          for(int i = 0; i < width; i++) {
-              if(current_red == image.getRed(i,j) && current_green == image.getGreen(i,j) && current_blue == image.getBlue(i,j)) {
-                  count++;
-              } else {
-                  rgbValue.insertEnd(current_red, current_green, current_blue,count);
-                  current_red = image.getRed(i,j);
-                  current_green = image.getGreen(i,j);
-                  current_blue = image.getBlue(i,j);
-                  count = 1;
+      // each band leaves its runs under its first row, one entry per band;
+      // an image with no rows has no bands
+      ConcurrentSkipListMap<Integer, RunEncoder> bands =
+          new ConcurrentSkipListMap<Integer, RunEncoder>();
+      if (height > 0) {
+          RowBands.run(height, width, (fromRow, toRow) -> {
+              RunEncoder band = new RunEncoder();
+              int[] row = new int[width];
+              for (int j = fromRow; j < toRow; j++) {
+                  image.readRow(j, row, 0);
+                  band.add(row, 0, width);
               }
-          }
+              bands.put(fromRow, band);
+          });
+      }
+      RunStore runs = new RunStore(width, height);
+      for (RunEncoder band : bands.values()) {
+          band.appendTo(runs);
       }
-      rgbValue.insertEnd(current_red,current_green,current_blue,count);
-      this.rgbValue = rgbValue;
+      this.runs = runs;
+
+    if (debug) {
+      check();
+    }
+  }
 
-    check();
+  /**
+   *  setDebug() turns on or off the full check() that the PixImage
+   *  constructor and setPixel() run after every change.  check() walks every
+   *  run, so it is off by default.
+   *
+   *  @param on true to check the encoding after every change.
+   */
+  public static void setDebug(boolean on) {
+    debug = on;
   }
 
   /**
@@ -163,19 +336,17 @@ public class RunLengthEncoding implements Iterable {
    *  all run lengths does not equal the number of pixels in the image.
    */
   public void check() {
-      int[] cur = new int[4];
-      int[] pre = {-1, -1, -1, -1};
-      int size = 0;
-      for(RunIterator run = iterator(); run.hasNext();) {
-          cur = run.next();
-          if(pre[1] == cur[1] && pre[2] == cur[2] && pre[3] == cur[3]) {
+      int pre = -1;
+      long size = 0;
+      for(RunIterator run = iterator(); run.advance();) {
+          if(pre == run.rgb()) {
               System.out.println("Illegal run!");
           }
-          size = size + cur[0];
-          if(cur[0] < 1) {
+          size = size + run.runLength();
+          if(run.runLength() < 1) {
               System.out.println("Too short!");
           }
-          pre = cur;
+          pre = run.rgb();
       }
 
       if(size != width * height) {
@@ -187,10 +358,13 @@ public class RunLengthEncoding implements Iterable {
 
   /**
    *  setPixel() modifies this run-length encoding so that the specified color
-   *  is stored at the given (x, y) coordinates.  The old pixel value at that
+   *  is stored at the given (x, y) coordinates.  It finds the run holding
+   *  (x, y) in O(log runs) steps.  The old pixel value at that
    *  coordinate should be overwritten and all others should remain the same.
    *  The updated run-length encoding should be compressed as much as possible;
    *  there should not be two consecutive runs with exactly the same RGB color.
+   *  If any of the three color intensities is NOT in the range 0...255, the
+   *  encoding is not changed, as with PixImage.setPixel().
    *
    *  @param x the x-coordinate of the pixel to modify.
    *  @param y the y-coordinate of the pixel to modify.
@@ -199,80 +373,31 @@ public class RunLengthEncoding implements Iterable {
    *  @param blue the new blue intensity to store at coordinate (x, y).
    */
   public void setPixel(int x, int y, short red, short green, short blue) {
-      // position shows where the node if all the pix are in a line
-      int position = y * width + x + 1;
-      for(RunIterator run = iterator(); run.hasNext();){
-          int[] pix = new int[4];
-          DListNode current = run.getNode();
-          pix = run.next();
-          position = position - pix[0];
-          // position ends as 0 means the pix in located at the end of the node of the linked list
-          if(position == 0){
-              // if the new value equals the original one , we don't need to do anything
-              if(current.red == red && current.green == green && current.blue == blue) {
-                  break;
-              }
-              // if there are more than one pix in this node of linked list
-              if(pix[0] > 1) {
-                  pix[0] = pix[0] - 1;
-                  current.repeat = pix[0];
-                  current.red = pix[1];
-                  current.green = pix[2];
-                  current.blue = pix[3];
-                  this.rgbValue.insertAfter(red, green, blue, 1, current);
-                  break;
-              } else if(pix[0] == 1) { // there is only one pix in this node of linked list
-                  if (current.prev != null && current.next != null){ //if the previous node and next node has the same rgb value as the new value
-                      if(current.prev.red == current.next.red && current.prev.green == current.next.green && current.prev.blue == current.next.blue) {
-                      current.prev.repeat = current.prev.repeat + current.next.repeat + 1;
-                      this.rgbValue.deleteNode(current.next);
-                      this.rgbValue.deleteNode(current);
-                      break;
-                  }
-                  }
-                  if(current.prev != null) {
-                      if (current.prev.red == red && current.prev.green == green && current.prev.blue == blue) { //if only previous node has the same rgb value as the new value
-                          current.prev.repeat = current.prev.repeat + 1;
-                          this.rgbValue.deleteNode(current);
-                          break;
-                      }
-                  }
-                  if (current.next != null) {
-                          if (current.next.red == red && current.next.green == green && current.next.blue == blue) { // if only the next node has the same rgb value as the new value
-                              current.next.repeat = current.next.repeat +1;
-                              this.rgbValue.deleteNode(current);
-                              break;
-                              }
-                          }
-                  // new rgb value is different from previous and next node
-                  current.setNode(red,green,blue,1);
-                  break;
-              }
-          }
-          // position ends as negative value means the pix located in middle or start of the this node
-          if(position < 0) {
-              if(current.red == red && current.green == green && current.blue == blue){
-                  break;
-              }
-              pix[0] = pix[0] + position - 1;
-              if(pix[0] != 0) { // pix located in middle
-                  current.repeat = pix[0];
-                  current.red = pix[1];
-                  current.green = pix[2];
-                  current.blue = pix[3];
-                  this.rgbValue.insertAfter(red, green, blue, 1, current);
-                  current = current.next;
-                  this.rgbValue.insertAfter((short) pix[1], (short) pix[2], (short) pix[3], -position, current);
-                  break;
-              } else { // pix located in start
-                  current.repeat = -position;
-                  this.rgbValue.insertBefore(red,green,blue,1,current);
-                  break;
-              }
+    if (!PixImage.inRange(red, green, blue)) {
+      return;
+    }
+      runs.paint(y * width + x, PixImage.pack(red, green, blue));
+    if (debug) {
+      check();
+    }
+  }
 
-          }
-      }
-    check();
+
+  /**
+   *  setPixels() applies every change in a PixelBatch, with the same result
+   *  as calling setPixel() for each change in the order they were recorded.
+   *  The changes are sorted by position and merged with the runs in a single
+   *  pass, so k changes to an encoding of r runs cost O(r + k log k) instead
+   *  of k separate edits.
+   *
+   *  @param batch the changes to apply.
+   */
+  public void setPixels(PixelBatch batch) {
+      int[][] edits = batch.sorted(width, height);
+      runs = runs.paintAll(edits[0], edits[1]);
+    if (debug) {
+      check();
+    }
   }
 
 
@@ -340,6 +465,7 @@ public class RunLengthEncoding implements Iterable {
    * main() runs a series of tests of the run-length encoding code.
    */
   public static void main(String[] args) {
+    setDebug(true);
     // Be forwarned that when you write arrays directly in Java as below,
     // each "row" of text is a column of your image--the numbers get
     // transposed.
@@ -360,6 +486,12 @@ public class RunLengthEncoding implements Iterable {
     doTest(image1.equals(rle1.toPixImage()),
            "image1 -> RLE1 -> image does not reconstruct the original image");
 
+    System.out.println("Testing getRed/getGreen/getBlue on a 3x3 encoding.");
+    doTest(rle1.getRed(0, 0) == 0 && rle1.getGreen(2, 0) == 2 &&
+           rle1.getBlue(1, 2) == 7 && rle1.getRed(2, 2) == 8 &&
+           rle1.getPixel(1, 1) == 0x040404,
+           "RLE1 returns the wrong pixel values");
+
     System.out.println("Testing setPixel() on a 3x3 encoding.");
     setAndCheckRLE(rle1, 0, 0, 42);
 //      System.out.print(rle1.toString());
@@ -415,6 +547,78 @@ public class RunLengthEncoding implements Iterable {
            "Setting RLE1[1][2] = 42 fails.");
 
 
+    System.out.println("Testing parallelStream() on a 3x3 encoding.");
+    doTest(rle1.parallelStream().mapToInt(run -> run[0]).sum() == 9 &&
+           rle1.parallelStream().count() == rle1.stream().count(),
+           "parallelStream() on RLE1 fails.");
+
+
+    System.out.println("Testing statistics() on a 3x3 encoding.");
+    RunStatistics stats = rle1.statistics();
+    doTest(stats.getPixelCount() == 9 && stats.getHistogram(PixImage.RED)[42] == 3 &&
+           stats.getMean(PixImage.BLUE) == (0 + 42 + 2 + 2 + 4 + 5 + 6 + 42 + 42) / 9.0 &&
+           stats.getTopColors(2)[0] == 0x2A2A2A && stats.getTopColors(2)[1] == 0x020202,
+           "statistics() on RLE1 fails.");
+
+    System.out.println("Testing getVariance() on a 2x2 encoding.");
+    // red 0, 0, 4, 4: mean 2, variance (4 + 4 + 4 + 4) / 4 = 4
+    // green 10, 20, 30, 40: mean 25, variance (225 + 25 + 25 + 225) / 4 = 125
+    // blue 7 throughout: variance 0
+    RunStatistics small = new RunLengthEncoding(2, 2, new int[] { 0, 0, 4, 4 },
+                                                new int[] { 10, 20, 30, 40 },
+                                                new int[] { 7, 7, 7, 7 },
+                                                new int[] { 1, 1, 1, 1 }).statistics();
+    doTest(small.getMean(PixImage.RED) == 2.0 && small.getVariance(PixImage.RED) == 4.0 &&
+           small.getMean(PixImage.GREEN) == 25.0 &&
+           small.getVariance(PixImage.GREEN) == 125.0 &&
+           small.getVariance(PixImage.BLUE) == 0.0,
+           "getVariance() on a 2x2 encoding fails.");
+
+
+    System.out.println("Testing crop() on a 3x3 encoding.");
+    doTest(rle1.crop(1, 1, 2, 2).equals(array2PixImage(new int[][] { { 4, 42 },
+                                                                     { 5, 42 } })),
+           "crop() on RLE1 fails.");
+
+
+    System.out.println("Testing setPixels() on a 3x3 encoding.");
+    PixelBatch batch = new PixelBatch();
+    batch.setPixel(2, 2, (short) 9, (short) 9, (short) 9);
+    batch.setPixel(0, 2, (short) 42, (short) 42, (short) 42);
+    batch.setPixel(2, 2, (short) 42, (short) 42, (short) 42);
+    batch.setPixel(2, 1, (short) 42, (short) 42, (short) 42);
+    rle1.setPixels(batch);
+    image1.setPixel(0, 2, (short) 42, (short) 42, (short) 42);
+    image1.setPixel(2, 1, (short) 42, (short) 42, (short) 42);
+    doTest(rle1.toPixImage().equals(image1) &&
+           rle1.toString().equals(new RunLengthEncoding(image1).toString()),
+           "setPixels() on RLE1 fails.");
+
+    System.out.println("Testing setPixel() and setPixels() with intensities " +
+                       "out of range.");
+    RunLengthEncoding one = new RunLengthEncoding(image1);
+    one.setPixel(0, 0, (short) 256, (short) 7, (short) 7);
+    one.setPixel(1, 0, (short) 7, (short) -1, (short) 7);
+    batch.clear();
+    batch.setPixel(0, 0, (short) 256, (short) 7, (short) 7);
+    batch.setPixel(1, 0, (short) 7, (short) -1, (short) 7);
+    RunLengthEncoding all = new RunLengthEncoding(image1);
+    all.setPixels(batch);
+    image1.setPixel(0, 0, (short) 256, (short) 7, (short) 7);
+    image1.setPixel(1, 0, (short) 7, (short) -1, (short) 7);
+    doTest(batch.size() == 0 && one.toPixImage().equals(image1) &&
+           all.toPixImage().equals(image1),
+           "setPixel() and setPixels() disagree with PixImage out of range.");
+
+    System.out.println("Testing the six-parameter constructor with " +
+                       "intensities out of range.");
+    doTest(new RunLengthEncoding(3, 1, new int[] { 0, 255 }, new int[] { 0, 255 },
+                                 new int[] { 0, 255 }, new int[] { 1, 2 })
+           .getPixel(2, 0) == 0xFFFFFF &&
+           rejectsRun(256, 0, 0) && rejectsRun(0, -1, 0) && rejectsRun(0, 0, 512),
+           "The six-parameter constructor accepts an intensity out of range.");
+
+
     PixImage image2 = array2PixImage(new int[][] { { 2, 3, 5 },
                                                    { 2, 4, 5 },
                                                    { 3, 4, 6 } });
@@ -517,5 +721,423 @@ public class RunLengthEncoding implements Iterable {
     image4.setPixel(1, 0, (short) 1, (short) 1, (short) 1);
     doTest(rle4.toPixImage().equals(image4),
            "Setting RLE4[1][0] = 1 fails.");
+
+
+    System.out.println("Testing one-parameter RunLengthEncoding constuctor " +
+                       "on 5x0 and 0x5 images.");
+    RunLengthEncoding empty1 = new RunLengthEncoding(new PixImage(5, 0));
+    RunLengthEncoding empty2 = new RunLengthEncoding(new PixImage(0, 5));
+    doTest(empty1.getWidth() == 5 && empty1.getHeight() == 0 &&
+           empty1.stream().count() == 0 &&
+           empty1.toPixImage().equals(new PixImage(5, 0)) &&
+           empty2.getWidth() == 0 && empty2.getHeight() == 5 &&
+           empty2.stream().count() == 0,
+           "Encoding an empty image fails.");
+
+
+    // runs of up to 200 pixels cross rows, and so the seams between bands
+    PixImage image6 = noisyImage(97, 53, 200, 3);
+    int oldThreshold = RowBands.getThreshold();
+    ForkJoinPool oldPool = RowBands.getPool();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    RowBands.setThreshold(Integer.MAX_VALUE);
+    RunLengthEncoding sequential6 = new RunLengthEncoding(image6);
+    RowBands.setPool(pool);
+    RowBands.setThreshold(1);
+    System.out.println("Testing parallel toPixImage() on a 97x53 encoding.");
+    doTest(sequential6.toPixImage().equals(image6),
+           "Parallel toPixImage() differs from the original image.");
+    System.out.println("Testing parallel encoding of a 97x53 image.");
+    RunLengthEncoding parallel6 = new RunLengthEncoding(image6);
+    doTest(parallel6.toString().equals(sequential6.toString()),
+           "Parallel encoding differs from sequential encoding.");
+    RowBands.setPool(oldPool);
+    RowBands.setThreshold(oldThreshold);
+    pool.shutdown();
+
+
+    // thousands of runs, so dozens of chunks, and few colors, so that edits
+    // split runs, merge them and empty whole chunks
+    PixImage image7 = noisyImage(200, 60, 3, 4);
+    RunLengthEncoding rle7 = new RunLengthEncoding(image7);
+    Random random = new Random(5);
+    boolean cropsMatch = true;
+    System.out.println("Testing setPixel() on a 200x60 encoding of many " +
+                       "chunks.");
+    for (int i = 0; i < 3000; i++) {
+      int x = random.nextInt(200);
+      int y = random.nextInt(60);
+      short value = (short) (random.nextInt(3) * 80);
+      rle7.setPixel(x, y, value, value, value);
+      image7.setPixel(x, y, value, value, value);
+      if (i % 100 == 0) {
+        int w = 1 + random.nextInt(200 - x);
+        int h = 1 + random.nextInt(60 - y);
+        cropsMatch = cropsMatch &&
+                     rle7.crop(x, y, w, h).equals(region(image7, x, y, w, h));
+      }
+    }
+    // painting whole rows one color merges away every run in them
+    for (int y = 10; y < 30; y++) {
+      for (int x = 0; x < 200; x++) {
+        rle7.setPixel(x, y, (short) 80, (short) 80, (short) 80);
+        image7.setPixel(x, y, (short) 80, (short) 80, (short) 80);
+      }
+    }
+    cropsMatch = cropsMatch &&
+                 rle7.crop(0, 5, 200, 30).equals(region(image7, 0, 5, 200, 30));
+    doTest(rle7.toPixImage().equals(image7) &&
+           rle7.toString().equals(new RunLengthEncoding(image7).toString()),
+           "setPixel() on RLE7 fails.");
+
+    System.out.println("Testing getRed/getGreen/getBlue on a 200x60 " +
+                       "encoding of many chunks.");
+    boolean pixelsMatch = true;
+    for (int y = 0; y < 60; y++) {
+      for (int x = 0; x < 200; x++) {
+        pixelsMatch = pixelsMatch && rle7.getRed(x, y) == image7.getRed(x, y) &&
+                      rle7.getGreen(x, y) == image7.getGreen(x, y) &&
+                      rle7.getBlue(x, y) == image7.getBlue(x, y);
+      }
+    }
+    doTest(pixelsMatch, "getRed/getGreen/getBlue on RLE7 fail.");
+
+    System.out.println("Testing crop() on a 200x60 encoding between edits.");
+    doTest(cropsMatch, "crop() on RLE7 fails after setPixel().");
+
+    System.out.println("Testing parallelStream() on a 200x60 encoding of " +
+                       "many chunks.");
+    List<int[]> runList = new ArrayList<>();
+    for (RunIterator it = rle7.iterator(); it.hasNext(); ) {
+      runList.add(it.next());
+    }
+    // the edits above left chunks of uneven sizes, so halving by run count
+    // splits in the middle of chunks; a pool of its own makes the stream
+    // run in parallel even on one processor
+    ForkJoinPool streamPool = new ForkJoinPool(4);
+    List<int[]> parallelRuns = streamPool.submit(
+        () -> rle7.parallelStream().collect(Collectors.toList())).join();
+    long parallelSum = streamPool.submit(
+        () -> rle7.parallelStream()
+                  .mapToLong(run -> (long) run[0] * (run[1] + 3 * run[2] + 7 * run[3]))
+                  .sum()).join();
+    streamPool.shutdown();
+    long sequentialSum = 0;
+    for (int[] run : runList) {
+      sequentialSum += (long) run[0] * (run[1] + 3 * run[2] + 7 * run[3]);
+    }
+    // split down to pieces of a few runs, so every CHUNK boundary falls in
+    // or between pieces
+    List<int[]> pieces = new ArrayList<>();
+    splitAll(rle7.spliterator(), 20, pieces);
+    doTest(runList.size() > 10 * RunStore.CHUNK && sameRuns(parallelRuns, runList) &&
+           sameRuns(pieces, runList) && parallelSum == sequentialSum &&
+           rle7.parallelStream().mapToInt(run -> run[0]).sum() == 200 * 60,
+           "parallelStream() on RLE7 differs from sequential iteration.");
+
+
+    PixImage image5 = noisyImage(61, 17, 5, 1);
+    RunLengthEncoding rle5 = new RunLengthEncoding(image5);
+    File file = tempFile(".tif");
+
+    System.out.println("Testing PackBitsTiff write() and read() on a 61x17 " +
+                       "encoding.");
+    PackBitsTiff.write(rle5, file.getPath());
+    RunLengthEncoding read5 = PackBitsTiff.read(file.getPath());
+    doTest(read5 != null && read5.toPixImage().equals(image5) &&
+           read5.toString().equals(rle5.toString()),
+           "RLE5 -> PackBits TIFF -> RLE does not reconstruct the original");
+
+    System.out.println("Testing PackBitsTiff write() and read() on a gray " +
+                       "61x17 encoding.");
+    PixImage gray5 = new PixImage(61, 17);
+    for (int y = 0; y < 17; y++) {
+      for (int x = 0; x < 61; x++) {
+        short red = image5.getRed(x, y);
+        gray5.setPixel(x, y, red, red, red);
+      }
+    }
+    PackBitsTiff.write(new RunLengthEncoding(gray5), file.getPath());
+    read5 = PackBitsTiff.read(file.getPath());
+    doTest(read5 != null && read5.toPixImage().equals(gray5),
+           "gray RLE5 -> PackBits TIFF -> RLE does not reconstruct the original");
+
+    System.out.println("Testing PackBitsTiff write() and read() on a 61x17 " +
+                       "encoding that PackBits cannot shrink.");
+    PixImage speckled = new PixImage(61, 17);
+    for (int y = 0; y < 17; y++) {
+      for (int x = 0; x < 61; x++) {
+        speckled.setPixel(x, y, (short) (4 * x), (short) (15 * y), (short) 7);
+      }
+    }
+    PackBitsTiff.write(new RunLengthEncoding(speckled), file.getPath());
+    read5 = PackBitsTiff.read(file.getPath());
+    // the raw samples, the 8-byte header and a directory of under 200 bytes
+    doTest(file.length() < 3 * 61 * 17 + 8 + 200 && read5 != null &&
+           read5.toPixImage().equals(speckled),
+           "an uncompressed TIFF from PackBitsTiff is wrong or too big");
+
+    System.out.println("Testing PackBitsTiff read() on damaged files.");
+    PackBitsTiff.write(rle5, file.getPath());
+    setFieldCount(file, 273, Integer.MAX_VALUE);
+    boolean hugeCountFails = readFails(file);
+    PackBitsTiff.write(rle5, file.getPath());
+    truncate(file, 20);
+    doTest(hugeCountFails && readFails(file),
+           "PackBitsTiff.read() accepts a damaged TIFF.");
+
+    System.out.println("Testing PackBitsTiff read() on files from ImageIO's " +
+                       "TIFF writer.");
+    writeWithImageIO(image5, BufferedImage.TYPE_INT_RGB, file);
+    read5 = PackBitsTiff.read(file.getPath());
+    doTest(read5 != null && read5.toPixImage().equals(image5),
+           "PackBitsTiff.read() misreads an RGB PackBits TIFF from ImageIO");
+    writeWithImageIO(gray5, BufferedImage.TYPE_BYTE_GRAY, file);
+    read5 = PackBitsTiff.read(file.getPath());
+    doTest(read5 != null && read5.toPixImage().equals(gray5),
+           "PackBitsTiff.read() misreads a gray PackBits TIFF from ImageIO");
+
+    System.out.println("Testing RunFile write() and open() on a 61x17 " +
+                       "encoding.");
+    RunFile.write(rle5, file.getPath(), 3);
+    RunFile runFile = RunFile.open(file.getPath());
+    boolean same = runFile.getWidth() == 61 && runFile.getHeight() == 17 &&
+                   runFile.getRunCount() == rle5.stream().count();
+    for (int y = 0; y < 17; y++) {
+      for (int x = 0; x < 61; x++) {
+        same = same && runFile.getPixel(x, y) == image5.getRGB(x, y);
+      }
+    }
+    doTest(same && runFile.toRunLengthEncoding().toString().equals(rle5.toString()),
+           "RLE5 -> run file -> RLE does not reconstruct the original");
+    file.delete();
+  }
+
+  /**
+   * noisyImage() returns an image of short runs of random colors, mixing gray
+   * and non-gray, so that it encodes into many runs.
+   *
+   * @param width the width of the image.
+   * @param height the height of the image.
+   * @param maxRun the longest run to draw.
+   * @param seed the seed for the random colors.
+   * @return the image.
+   */
+  private static PixImage noisyImage(int width, int height, int maxRun, long seed) {
+    Random random = new Random(seed);
+    PixImage image = new PixImage(width, height);
+    int run = 0;
+    short red = 0;
+    short green = 0;
+    short blue = 0;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        if (run == 0) {
+          run = 1 + random.nextInt(maxRun);
+          red = (short) (random.nextInt(4) * 80);
+          green = random.nextBoolean() ? red : (short) random.nextInt(256);
+          blue = red;
+        }
+        image.setPixel(x, y, red, green, blue);
+        run--;
+      }
+    }
+    return image;
+  }
+
+  /**
+   * region() copies the w x h rectangle whose upper left corner is pixel
+   * (x, y) of an image into a new PixImage.
+   *
+   * @param image the image to copy from.
+   * @param x the x-coordinate of the upper left corner of the rectangle.
+   * @param y the y-coordinate of the upper left corner of the rectangle.
+   * @param w the width of the rectangle.
+   * @param h the height of the rectangle.
+   * @return the copy.
+   */
+  private static PixImage region(PixImage image, int x, int y, int w, int h) {
+    PixImage region = new PixImage(w, h);
+    for (int j = 0; j < h; j++) {
+      for (int i = 0; i < w; i++) {
+        region.setPixel(i, j, image.getRed(x + i, y + j),
+                        image.getGreen(x + i, y + j), image.getBlue(x + i, y + j));
+      }
+    }
+    return region;
+  }
+
+  /**
+   * tempFile() creates an empty temporary file that is deleted on exit.
+   *
+   * @param suffix the filename suffix.
+   * @return the file.
+   */
+  private static File tempFile(String suffix) {
+    try {
+      File file = File.createTempFile("rle", suffix);
+      file.deleteOnExit();
+      return file;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * splitAll() splits a Spliterator in half until each piece has at most
+   * the given number of runs, and then adds the runs of the pieces to a
+   * list in order.
+   *
+   * @param runs the Spliterator to split.
+   * @param most the largest piece not to split.
+   * @param out the list the runs are added to.
+   */
+  private static void splitAll(Spliterator<int[]> runs, int most, List<int[]> out) {
+    if (runs.estimateSize() > most) {
+      Spliterator<int[]> prefix = runs.trySplit();
+      if (prefix != null) {
+        splitAll(prefix, most, out);
+        splitAll(runs, most, out);
+        return;
+      }
+    }
+    runs.forEachRemaining(out::add);
+  }
+
+  /**
+   * sameRuns() returns true if two lists hold the same runs in the same
+   * order.
+   *
+   * @param a a list of runs.
+   * @param b another list of runs.
+   * @return true if the lists are equal run by run.
+   */
+  private static boolean sameRuns(List<int[]> a, List<int[]> b) {
+    if (a.size() != b.size()) {
+      return false;
+    }
+    for (int i = 0; i < a.size(); i++) {
+      if (!Arrays.equals(a.get(i), b.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * rejectsRun() returns true if the six-parameter constructor refuses a 2x1
+   * encoding whose second run has the given intensities.
+   *
+   * @param red the red intensity of the run.
+   * @param green the green intensity of the run.
+   * @param blue the blue intensity of the run.
+   * @return true if the constructor throws IllegalArgumentException.
+   */
+  private static boolean rejectsRun(int red, int green, int blue) {
+    try {
+      new RunLengthEncoding(2, 1, new int[] { 0, red }, new int[] { 0, green },
+                            new int[] { 0, blue }, new int[] { 1, 1 });
+      return false;
+    } catch (IllegalArgumentException e) {
+      return true;
+    }
+  }
+
+  /**
+   * readFails() returns true if PackBitsTiff.read() rejects a file with
+   * UncheckedIOException, as it must for a damaged TIFF.
+   *
+   * @param file the file to read.
+   * @return true if the file is rejected.
+   */
+  private static boolean readFails(File file) {
+    try {
+      PackBitsTiff.read(file.getPath());
+      return false;
+    } catch (UncheckedIOException e) {
+      return true;
+    }
+  }
+
+  /**
+   * setFieldCount() overwrites the value count of a field in the directory of
+   * a little-endian TIFF file written by PackBitsTiff.
+   *
+   * @param file the file to damage.
+   * @param tag the tag of the field.
+   * @param count the new count.
+   */
+  private static void setFieldCount(File file, int tag, int count) {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(4);
+      int directory = Integer.reverseBytes(raf.readInt());
+      raf.seek(directory);
+      int entries = Short.reverseBytes(raf.readShort()) & 0xFFFF;
+      for (int e = 0; e < entries; e++) {
+        int at = directory + 2 + 12 * e;
+        raf.seek(at);
+        if ((Short.reverseBytes(raf.readShort()) & 0xFFFF) == tag) {
+          raf.seek(at + 4);
+          raf.writeInt(Integer.reverseBytes(count));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * truncate() cuts a file to its first length bytes.
+   *
+   * @param file the file to cut.
+   * @param length the new length.
+   */
+  private static void truncate(File file, long length) {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(length);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * writeWithImageIO() writes an image as a PackBits TIFF using ImageIO's
+   * TIFF writer, rather than PackBitsTiff.
+   *
+   * @param image the image to write.
+   * @param type the BufferedImage type to write it as, TYPE_INT_RGB or
+   *        TYPE_BYTE_GRAY.
+   * @param file the file to write.
+   */
+  private static void writeWithImageIO(PixImage image, int type, File file) {
+    BufferedImage buffer = new BufferedImage(image.getWidth(), image.getHeight(),
+                                             type);
+    // set the samples themselves; setRGB() would convert colors into a gray
+    // image's linear color space
+    WritableRaster raster = buffer.getRaster();
+    int[] samples = new int[raster.getNumBands()];
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        samples[0] = image.getRed(x, y);
+        if (samples.length == 3) {
+          samples[1] = image.getGreen(x, y);
+          samples[2] = image.getBlue(x, y);
+        }
+        raster.setPixel(x, y, samples);
+      }
+    }
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionType("PackBits");
+    file.delete();
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+      writer.setOutput(out);
+      writer.write(null, new IIOImage(buffer, null, null), param);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      writer.dispose();
+    }
   }
 }
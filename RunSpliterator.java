@@ -0,0 +1,109 @@
+/* RunSpliterator.java */
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ *  The RunSpliterator class walks a range of the runs of a RunLengthEncoding
+ *  and can split the range in half, so that the runs can be streamed in
+ *  parallel.  Each run is handed out as the same array of four ints that
+ *  RunIterator.next() returns: the length, then red, green and blue.
+ *
+ *  When the first RunSpliterator is made, it records the number of the first
+ *  run of each chunk, so that a split finds the chunk holding its middle run
+ *  by binary search without touching the RunStore.  The spliterators of one
+ *  encoding only read the runs, so they may be used on different threads,
+ *  but not while the encoding is being changed.
+ */
+class RunSpliterator implements Spliterator<int[]> {
+
+  private final RunStore runs;
+  // firstRun[c] is the number of the first run of chunk c
+  private final int[] firstRun;
+  // the runs still to visit are from...to - 1; run from is at (chunk, index)
+  private int from;
+  private final int to;
+  private int chunk;
+  private int index;
+
+  /**
+   *  RunSpliterator() constructs a spliterator over every run.
+   */
+  RunSpliterator(RunStore runs) {
+    this.runs = runs;
+    this.firstRun = new int[runs.chunkCount() + 1];
+    for (int c = 0; c < runs.chunkCount(); c++) {
+      firstRun[c + 1] = firstRun[c] + runs.chunk(c).count;
+    }
+    this.to = runs.size();
+  }
+
+  private RunSpliterator(RunSpliterator parent, int to) {
+    this.runs = parent.runs;
+    this.firstRun = parent.firstRun;
+    this.from = parent.from;
+    this.to = to;
+    this.chunk = parent.chunk;
+    this.index = parent.index;
+  }
+
+  public boolean tryAdvance(Consumer<? super int[]> action) {
+    if (from >= to) {
+      return false;
+    }
+    action.accept(run());
+    return true;
+  }
+
+  public void forEachRemaining(Consumer<? super int[]> action) {
+    while (from < to) {
+      action.accept(run());
+    }
+  }
+
+  /*
+  run returns run number from as {length, red, green, blue} and steps past it
+   */
+  private int[] run() {
+    RunStore.Chunk c = runs.chunk(chunk);
+    int rgb = c.rgb[index];
+    int[] dot = { c.lengths[index], (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF };
+    from++;
+    if (++index == c.count) {
+      chunk++;
+      index = 0;
+    }
+    return dot;
+  }
+
+  public Spliterator<int[]> trySplit() {
+    int mid = (from + to) >>> 1;
+    if (mid <= from) {
+      return null;
+    }
+    RunSpliterator prefix = new RunSpliterator(this, mid);
+    // find the chunk holding run mid: the last c with firstRun[c] <= mid
+    int lo = chunk;
+    int hi = firstRun.length - 2;
+    while (lo < hi) {
+      int c = (lo + hi + 1) >>> 1;
+      if (firstRun[c] <= mid) {
+        lo = c;
+      } else {
+        hi = c - 1;
+      }
+    }
+    from = mid;
+    chunk = lo;
+    index = mid - firstRun[lo];
+    return prefix;
+  }
+
+  public long estimateSize() {
+    return to - from;
+  }
+
+  public int characteristics() {
+    return ORDERED | SIZED | SUBSIZED | NONNULL;
+  }
+}
@@ -0,0 +1,145 @@
+/* RunStatistics.java */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ *  The RunStatistics class holds color statistics of a RunLengthEncoding:
+ *  a histogram of each of the red, green, and blue intensities, their means
+ *  and variances, and how many pixels have each color.  They are computed by
+ *  RunLengthEncoding.statistics() straight from the runs, each run counting
+ *  as many times as it has pixels, so the cost is O(runs) rather than
+ *  O(pixels), and the image is never decoded.
+ *
+ *  Channels are numbered as in PixImage: PixImage.RED, PixImage.GREEN, and
+ *  PixImage.BLUE.
+ */
+public class RunStatistics {
+
+  private long pixels;
+  // histograms[channel][intensity] is the number of pixels with that intensity
+  private long[][] histograms = new long[3][256];
+  // the number of pixels of each packed 0x00RRGGBB color
+  private Map<Integer, Long> colorCounts = new HashMap<Integer, Long>();
+
+  /**
+   *  RunStatistics() gathers the statistics of a RunStore in one pass.
+   */
+  RunStatistics(RunStore runs) {
+    for (int c = 0; c < runs.chunkCount(); c++) {
+      RunStore.Chunk chunk = runs.chunk(c);
+      for (int i = 0; i < chunk.count; i++) {
+        int rgb = chunk.rgb[i];
+        long length = chunk.lengths[i];
+        pixels += length;
+        histograms[PixImage.RED][(rgb >> 16) & 0xFF] += length;
+        histograms[PixImage.GREEN][(rgb >> 8) & 0xFF] += length;
+        histograms[PixImage.BLUE][rgb & 0xFF] += length;
+        colorCounts.merge(rgb, length, Long::sum);
+      }
+    }
+  }
+
+  /**
+   *  getPixelCount() returns the number of pixels in the image.
+   *
+   *  @return the number of pixels.
+   */
+  public long getPixelCount() {
+    return pixels;
+  }
+
+  /**
+   *  getHistogram() returns the histogram of one channel: element i is the
+   *  number of pixels whose intensity in that channel is i.
+   *
+   *  @param channel PixImage.RED, PixImage.GREEN, or PixImage.BLUE.
+   *  @return a new array of 256 counts.
+   */
+  public long[] getHistogram(int channel) {
+    return histograms[channel].clone();
+  }
+
+  /**
+   *  getMean() returns the mean intensity of one channel over all pixels.
+   *
+   *  @param channel PixImage.RED, PixImage.GREEN, or PixImage.BLUE.
+   *  @return the mean intensity, or zero for an empty image.
+   */
+  public double getMean(int channel) {
+    if (pixels == 0) {
+      return 0;
+    }
+    long sum = 0;
+    for (int v = 0; v < 256; v++) {
+      sum += v * histograms[channel][v];
+    }
+    return (double) sum / pixels;
+  }
+
+  /**
+   *  getVariance() returns the variance of the intensity of one channel
+   *  over all pixels (dividing by the number of pixels, not one less).
+   *
+   *  @param channel PixImage.RED, PixImage.GREEN, or PixImage.BLUE.
+   *  @return the variance, or zero for an empty image.
+   */
+  public double getVariance(int channel) {
+    if (pixels == 0) {
+      return 0;
+    }
+    double mean = getMean(channel);
+    double sum = 0;
+    for (int v = 0; v < 256; v++) {
+      sum += (v - mean) * (v - mean) * histograms[channel][v];
+    }
+    return sum / pixels;
+  }
+
+  /**
+   *  getColorCount() returns the number of pixels of one color.
+   *
+   *  @param rgb the color, packed as 0x00RRGGBB.
+   *  @return the number of pixels of that color.
+   */
+  public long getColorCount(int rgb) {
+    Long count = colorCounts.get(rgb);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   *  getTopColors() returns the k colors that cover the most pixels, most
+   *  common first; colors covering equally many pixels come in increasing
+   *  order of their packed values.  If the image has fewer than k colors,
+   *  all of them are returned.
+   *
+   *  @param k the number of colors wanted.
+   *  @return the colors, packed as 0x00RRGGBB.
+   */
+  public int[] getTopColors(int k) {
+    // keep the k best seen so far in a heap whose root is the worst of them
+    PriorityQueue<Map.Entry<Integer, Long>> best =
+        new PriorityQueue<Map.Entry<Integer, Long>>((a, b) -> {
+          int byCount = Long.compare(a.getValue(), b.getValue());
+          return byCount != 0 ? byCount : Integer.compare(b.getKey(), a.getKey());
+        });
+    for (Map.Entry<Integer, Long> entry : colorCounts.entrySet()) {
+      best.add(entry);
+      if (best.size() > k) {
+        best.poll();
+      }
+    }
+    List<Integer> order = new ArrayList<Integer>();
+    while (!best.isEmpty()) {
+      order.add(best.poll().getKey());
+    }
+    int[] top = new int[order.size()];
+    for (int i = 0; i < top.length; i++) {
+      top[i] = order.get(top.length - 1 - i);
+    }
+    return top;
+  }
+}
@@ -0,0 +1,560 @@
+/* RunStore.java */
+
+import java.util.Arrays;
+
+/**
+ *  The RunStore class holds the runs of a RunLengthEncoding in primitive
+ *  arrays.  Each run is a packed 0x00RRGGBB color and a length.  Runs are
+ *  kept in order in a list of chunks, each holding up to CHUNK runs in two
+ *  parallel int arrays, so a run costs about eight bytes instead of a node
+ *  object, and walking the runs is a sequential scan of arrays.  Inserting
+ *  or removing a run only shifts the runs of one chunk; a full chunk is
+ *  split in two and an empty one is dropped.
+ *
+ *  Two Fenwick trees over the chunks, one summing run counts and one summing
+ *  pixel counts, find the chunk holding a given run or pixel in O(log chunks)
+ *  steps, so findRun() and paint() cost O(log runs) plus a scan of one
+ *  chunk.  Adding a run to or taking one from a chunk updates the trees in
+ *  O(log chunks); adding or dropping a whole chunk marks them stale, and they
+ *  are rebuilt in one O(chunks) pass the next time they are needed.
+ *
+ *  Runs are numbered 0...size() - 1; pixels are numbered in row-major order,
+ *  so pixel (x, y) of a width-pixel-wide image is number y * width + x.
+ *
+ *  A row index records, for each row of the image, the chunk, the index in
+ *  the chunk and the offset in the run of the row's first pixel, so that
+ *  decode() can start at any row in O(1) steps.  paint() patches only the
+ *  rows that begin in the chunks it changed; the index is rebuilt in one
+ *  pass after runs are added with append() or extend().
+ */
+class RunStore {
+
+  // the most runs a chunk holds
+  static final int CHUNK = 128;
+
+  static class Chunk {
+    final int[] rgb = new int[CHUNK];
+    final int[] lengths = new int[CHUNK];
+    int count;
+    // the sum of lengths[0...count - 1]
+    int pixels;
+    // the chunk after this one, or null
+    Chunk next;
+  }
+
+  private final int width;
+  private final int height;
+
+  private Chunk[] chunks = new Chunk[4];
+  private int chunkCount;
+  private int runCount;
+
+  // Fenwick trees over the chunks (1-based): runTree sums chunk run counts and
+  // pixelTree sums chunk pixel counts; null when stale
+  private int[] runTree;
+  private int[] pixelTree;
+
+  // set by findRun(): where the run it returned starts, and where it is stored
+  private int foundStart;
+  private int foundRunChunk;
+  private int foundRunIndex;
+
+  // the finger: the run that rgbAt() hit last, as its chunk, its index in
+  // that chunk and its first pixel; fingerChunk is -1 after any change
+  private int fingerChunk = -1;
+  private int fingerIndex;
+  private int fingerStart;
+  // set by locate(): the chunk and the index within it of a run
+  private int foundChunk;
+  private int foundIndex;
+
+  // the row index: row y begins rowOffset[y] pixels into run rowIndex[y] of
+  // rowChunk[y]; rowChunk is null when stale
+  private Chunk[] rowChunk;
+  private int[] rowIndex;
+  private int[] rowOffset;
+
+  /**
+   *  RunStore() constructs an empty store for the runs of an image with the
+   *  given width and height.
+   */
+  RunStore(int width, int height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   *  size() returns the number of runs.
+   */
+  int size() {
+    return runCount;
+  }
+
+  /**
+   *  chunkCount() and chunk() give the chunks in order, for sequential scans.
+   */
+  int chunkCount() {
+    return chunkCount;
+  }
+
+  Chunk chunk(int c) {
+    return chunks[c];
+  }
+
+  /**
+   *  append() adds a run after the last one, without merging it with the
+   *  last run even if they have the same color.
+   */
+  void append(int rgb, int length) {
+    Chunk last = chunkCount == 0 ? null : chunks[chunkCount - 1];
+    if (last == null || last.count == CHUNK) {
+      last = new Chunk();
+      insertChunk(chunkCount, last);
+    }
+    last.rgb[last.count] = rgb;
+    last.lengths[last.count] = length;
+    last.count++;
+    last.pixels += length;
+    runCount++;
+    fingerChunk = -1;
+    rowChunk = null;
+    update(chunkCount - 1, 1, length);
+  }
+
+  /**
+   *  extend() adds a run after the last one, merging it into the last run if
+   *  they have the same color.
+   */
+  void extend(int rgb, int length) {
+    if (chunkCount > 0) {
+      Chunk last = chunks[chunkCount - 1];
+      if (last.rgb[last.count - 1] == rgb) {
+        last.lengths[last.count - 1] += length;
+        last.pixels += length;
+        fingerChunk = -1;
+        rowChunk = null;
+        update(chunkCount - 1, 0, length);
+        return;
+      }
+    }
+    append(rgb, length);
+  }
+
+  /**
+   *  paintAll() returns a new RunStore with the pixels at the given
+   *  positions, which must be in increasing order, repainted in the given
+   *  colors.  It makes one pass over the runs and the changes, merging runs
+   *  of equal color as it goes.
+   */
+  RunStore paintAll(int[] positions, int[] colors) {
+    RunStore out = new RunStore(width, height);
+    int e = 0;
+    int pos = 0;
+    for (int c = 0; c < chunkCount; c++) {
+      Chunk chunk = chunks[c];
+      for (int i = 0; i < chunk.count; i++) {
+        int color = chunk.rgb[i];
+        int end = pos + chunk.lengths[i];
+        while (e < positions.length && positions[e] < end) {
+          if (positions[e] > pos) {
+            out.extend(color, positions[e] - pos);
+          }
+          out.extend(colors[e], 1);
+          pos = positions[e] + 1;
+          e++;
+        }
+        if (end > pos) {
+          out.extend(color, end - pos);
+        }
+        pos = end;
+      }
+    }
+    return out;
+  }
+
+  /**
+   *  rgb() and length() return the color and the length of a run.
+   */
+  int rgb(int run) {
+    locate(run);
+    return chunks[foundChunk].rgb[foundIndex];
+  }
+
+  int length(int run) {
+    locate(run);
+    return chunks[foundChunk].lengths[foundIndex];
+  }
+
+  /**
+   *  findRun() returns the number of the run that holds a pixel, and leaves
+   *  the number of the first pixel of that run in foundStart().
+   */
+  int findRun(int position) {
+    if (position < 0) {
+      throw new IndexOutOfBoundsException("no run holds pixel " + position);
+    }
+    buildTrees();
+    // descend the pixel tree to the first chunk whose end lies past position
+    int c = 0;
+    int start = 0;
+    int run = 0;
+    for (int step = Integer.highestOneBit(chunkCount); step > 0; step >>= 1) {
+      int next = c + step;
+      if (next <= chunkCount && start + pixelTree[next] <= position) {
+        c = next;
+        start += pixelTree[next];
+        run += runTree[next];
+      }
+    }
+    if (c == chunkCount) {
+      throw new IndexOutOfBoundsException("no run holds pixel " + position);
+    }
+    Chunk chunk = chunks[c];
+    int i = 0;
+    while (position >= start + chunk.lengths[i]) {
+      start += chunk.lengths[i];
+      i++;
+    }
+    foundStart = start;
+    foundRunChunk = c;
+    foundRunIndex = i;
+    return run + i;
+  }
+
+  /**
+   *  rgbAt() returns the color of one pixel.  It remembers the run it found,
+   *  so reading the pixels of a run, or of the run after it, skips the tree.
+   *  The finger, like findRun()'s results, is shared by every caller, so
+   *  rgbAt() must not run on two threads at once.
+   */
+  int rgbAt(int position) {
+    if (fingerChunk >= 0 && position >= fingerStart) {
+      Chunk chunk = chunks[fingerChunk];
+      int end = fingerStart + chunk.lengths[fingerIndex];
+      if (position < end) {
+        return chunk.rgb[fingerIndex];
+      }
+      // step to the following run
+      int c = fingerChunk;
+      int i = fingerIndex + 1;
+      if (i == chunk.count) {
+        c++;
+        i = 0;
+      }
+      if (c < chunkCount && position < end + chunks[c].lengths[i]) {
+        fingerChunk = c;
+        fingerIndex = i;
+        fingerStart = end;
+        return chunks[c].rgb[i];
+      }
+    }
+    findRun(position);
+    fingerChunk = foundRunChunk;
+    fingerIndex = foundRunIndex;
+    fingerStart = foundStart;
+    return chunks[fingerChunk].rgb[fingerIndex];
+  }
+
+  int foundStart() {
+    return foundStart;
+  }
+
+  /**
+   *  decode() writes the colors of count pixels, starting at pixel x of row
+   *  y, into dst starting at dstOffset.  It finds the run holding the first
+   *  pixel from the row index, then fills whole runs at a time.
+   */
+  void decode(int y, int x, int count, int[] dst, int dstOffset) {
+    buildRows();
+    Chunk chunk = rowChunk[y];
+    int i = rowIndex[y];
+    // the pixels of run i that are left, counting from pixel (x, y)
+    int left = chunk.lengths[i] - rowOffset[y] - x;
+    while (left <= 0) {
+      if (++i == chunk.count) {
+        chunk = chunk.next;
+        i = 0;
+      }
+      left += chunk.lengths[i];
+    }
+    int end = dstOffset + count;
+    while (dstOffset < end) {
+      int n = Math.min(left, end - dstOffset);
+      Arrays.fill(dst, dstOffset, dstOffset + n, chunk.rgb[i]);
+      dstOffset += n;
+      if (dstOffset < end) {
+        if (++i == chunk.count) {
+          chunk = chunk.next;
+          i = 0;
+        }
+        left = chunk.lengths[i];
+      }
+    }
+  }
+
+  /**
+   *  paint() gives one pixel a new color, splitting its run and merging it
+   *  with the runs on either side as needed, so that no two consecutive
+   *  runs have the same color if none did before.
+   */
+  void paint(int position, int rgb) {
+    int run = findRun(position);
+    int offset = position - foundStart;
+    int old = rgb(run);
+    int length = length(run);
+    if (old == rgb) {
+      return;
+    }
+    // rebuild the window of the run and its neighbors
+    int first = run > 0 ? run - 1 : run;
+    int last = run < runCount - 1 ? run + 1 : run;
+    int[] newRgb = new int[5];
+    int[] newLengths = new int[5];
+    int n = 0;
+    if (first < run) {
+      n = add(newRgb, newLengths, n, rgb(first), length(first));
+    }
+    if (offset > 0) {
+      n = add(newRgb, newLengths, n, old, offset);
+    }
+    n = add(newRgb, newLengths, n, rgb, 1);
+    if (offset < length - 1) {
+      n = add(newRgb, newLengths, n, old, length - offset - 1);
+    }
+    if (last > run) {
+      n = add(newRgb, newLengths, n, rgb(last), length(last));
+    }
+    // replace() may append, which marks the index stale; keep it to patch
+    Chunk[] indexed = rowChunk;
+    replace(first, last - first + 1, newRgb, newLengths, n);
+    if (indexed != null) {
+      rowChunk = indexed;
+      // the runs that moved between chunks all lie in the chunks holding
+      // the new runs, or in the chunk on either side of them
+      locate(first);
+      int from = Math.max(foundChunk - 1, 0);
+      locate(first + n - 1);
+      int to = Math.min(foundChunk + 1, chunkCount - 1);
+      indexRows(from, to);
+    }
+  }
+
+  /*
+  add appends a run to a short list, merging it into the last one if the colors match
+   */
+  private static int add(int[] rgb, int[] lengths, int n, int color, int length) {
+    if (n > 0 && rgb[n - 1] == color) {
+      lengths[n - 1] += length;
+      return n;
+    }
+    rgb[n] = color;
+    lengths[n] = length;
+    return n + 1;
+  }
+
+  /**
+   *  replace() removes removeCount runs starting with run first and puts
+   *  the first count runs of rgb and lengths in their place.
+   */
+  void replace(int first, int removeCount, int[] rgb, int[] lengths, int count) {
+    for (int k = 0; k < removeCount; k++) {
+      remove(first);
+    }
+    for (int k = 0; k < count; k++) {
+      insert(first + k, rgb[k], lengths[k]);
+    }
+  }
+
+  /*
+  remove deletes one run, and its chunk if that leaves the chunk empty
+   */
+  private void remove(int run) {
+    locate(run);
+    Chunk chunk = chunks[foundChunk];
+    int i = foundIndex;
+    int removedLength = chunk.lengths[i];
+    chunk.pixels -= removedLength;
+    System.arraycopy(chunk.rgb, i + 1, chunk.rgb, i, chunk.count - i - 1);
+    System.arraycopy(chunk.lengths, i + 1, chunk.lengths, i, chunk.count - i - 1);
+    chunk.count--;
+    runCount--;
+    fingerChunk = -1;
+    if (chunk.count == 0) {
+      removeChunk(foundChunk);
+    } else {
+      update(foundChunk, -1, -removedLength);
+    }
+  }
+
+  /*
+  insert puts a new run in front of run number "run" (or after the last run if run == size())
+   */
+  private void insert(int run, int rgb, int length) {
+    if (run == runCount) {
+      append(rgb, length);
+      return;
+    }
+    locate(run);
+    Chunk chunk = chunks[foundChunk];
+    int i = foundIndex;
+    if (chunk.count == CHUNK) {
+      splitChunk(foundChunk);
+      if (i > CHUNK / 2) {
+        i -= CHUNK / 2;
+        chunk = chunks[foundChunk + 1];
+      }
+    }
+    System.arraycopy(chunk.rgb, i, chunk.rgb, i + 1, chunk.count - i);
+    System.arraycopy(chunk.lengths, i, chunk.lengths, i + 1, chunk.count - i);
+    chunk.rgb[i] = rgb;
+    chunk.lengths[i] = length;
+    chunk.count++;
+    chunk.pixels += length;
+    runCount++;
+    fingerChunk = -1;
+    update(chunk == chunks[foundChunk] ? foundChunk : foundChunk + 1, 1, length);
+  }
+
+  /**
+   *  buildRows() rebuilds a stale row index in one pass over the runs.
+   *  decode() calls it, but threads sharing a RunStore must call it first.
+   */
+  void buildRows() {
+    if (rowChunk != null) {
+      return;
+    }
+    if (height > 0 && (chunkCount == 0 || width <= 0)) {
+      throw new IllegalStateException("no runs to index");
+    }
+    rowChunk = new Chunk[height];
+    rowIndex = new int[height];
+    rowOffset = new int[height];
+    indexRows(0, chunkCount - 1);
+  }
+
+  /*
+  indexRows points every row that begins in chunks from...to at its run
+   */
+  private void indexRows(int from, int to) {
+    buildTrees();
+    int start = 0;
+    for (int k = from; k > 0; k -= k & -k) {
+      start += pixelTree[k];
+    }
+    int y = (start + width - 1) / width;
+    for (int c = from; c <= to; c++) {
+      Chunk chunk = chunks[c];
+      for (int i = 0; i < chunk.count; i++) {
+        int end = start + chunk.lengths[i];
+        while (y < height && y * width < end) {
+          rowChunk[y] = chunk;
+          rowIndex[y] = i;
+          rowOffset[y] = y * width - start;
+          y++;
+        }
+        start = end;
+      }
+    }
+  }
+
+  /*
+  locate sets foundChunk and foundIndex to where a run is stored
+   */
+  private void locate(int run) {
+    if (run < 0 || run >= runCount) {
+      throw new IndexOutOfBoundsException("no run " + run);
+    }
+    buildTrees();
+    int c = 0;
+    for (int step = Integer.highestOneBit(chunkCount); step > 0; step >>= 1) {
+      int next = c + step;
+      if (next <= chunkCount && runTree[next] <= run) {
+        c = next;
+        run -= runTree[next];
+      }
+    }
+    foundChunk = c;
+    foundIndex = run;
+  }
+
+  /*
+  update adds to the run and pixel counts of chunk c in the trees, if they are current
+   */
+  private void update(int c, int runs, int pixels) {
+    if (runTree == null) {
+      return;
+    }
+    for (int k = c + 1; k <= chunkCount; k += k & -k) {
+      runTree[k] += runs;
+      pixelTree[k] += pixels;
+    }
+  }
+
+  /*
+  buildTrees rebuilds stale trees from the chunks in O(chunks)
+   */
+  private void buildTrees() {
+    if (runTree != null) {
+      return;
+    }
+    int[] runs = new int[chunkCount + 1];
+    int[] pixels = new int[chunkCount + 1];
+    for (int k = 1; k <= chunkCount; k++) {
+      runs[k] += chunks[k - 1].count;
+      pixels[k] += chunks[k - 1].pixels;
+      int parent = k + (k & -k);
+      if (parent <= chunkCount) {
+        runs[parent] += runs[k];
+        pixels[parent] += pixels[k];
+      }
+    }
+    runTree = runs;
+    pixelTree = pixels;
+  }
+
+  /*
+  splitChunk moves the upper half of a full chunk into a new chunk right after it
+   */
+  private void splitChunk(int c) {
+    Chunk full = chunks[c];
+    Chunk upper = new Chunk();
+    int half = CHUNK / 2;
+    upper.count = full.count - half;
+    System.arraycopy(full.rgb, half, upper.rgb, 0, upper.count);
+    System.arraycopy(full.lengths, half, upper.lengths, 0, upper.count);
+    for (int i = 0; i < upper.count; i++) {
+      upper.pixels += upper.lengths[i];
+    }
+    full.count = half;
+    full.pixels -= upper.pixels;
+    insertChunk(c + 1, upper);
+  }
+
+  private void insertChunk(int c, Chunk chunk) {
+    if (chunkCount == chunks.length) {
+      Chunk[] bigger = new Chunk[2 * chunks.length];
+      System.arraycopy(chunks, 0, bigger, 0, chunkCount);
+      chunks = bigger;
+    }
+    System.arraycopy(chunks, c, chunks, c + 1, chunkCount - c);
+    chunks[c] = chunk;
+    chunkCount++;
+    chunk.next = c + 1 < chunkCount ? chunks[c + 1] : null;
+    if (c > 0) {
+      chunks[c - 1].next = chunk;
+    }
+    runTree = null;
+    pixelTree = null;
+  }
+
+  private void removeChunk(int c) {
+    if (c > 0) {
+      chunks[c - 1].next = chunks[c].next;
+    }
+    System.arraycopy(chunks, c + 1, chunks, c, chunkCount - c - 1);
+    chunkCount--;
+    chunks[chunkCount] = null;
+    runTree = null;
+    pixelTree = null;
+  }
+}
@@ -0,0 +1,429 @@
+/* TiledPixImage.java */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  The TiledPixImage class represents a color image that may be larger than
+ *  the Java heap.  It has the same accessors as PixImage, but its pixels live
+ *  in a memory-mapped scratch file, cut into square tiles of TILE x TILE
+ *  pixels.  A bounded number of recently used tiles is cached on the heap;
+ *  when a changed tile leaves the cache it is written back to the file.
+ *
+ *  boxBlur() and sobelEdges() work one tile at a time.  Each tile is read
+ *  together with a halo of the neighboring pixels it depends on, processed
+ *  as a small PixImage, and its middle is written to the output, so memory
+ *  use does not grow with the size of the image.
+ *
+ *  A TiledPixImage is not safe for use by several threads at once.  Call
+ *  close() to delete the scratch file when the image is no longer needed;
+ *  files of images never closed are deleted when the JVM exits.
+ */
+public class TiledPixImage implements AutoCloseable {
+
+  /**
+   *  The width and height of a tile, in pixels.
+   */
+  public static final int TILE = 256;
+
+  private static final int TILE_PIXELS = TILE * TILE;
+  private static final long TILE_BYTES = 4L * TILE_PIXELS;
+  // tiles mapped together; keeps each mapping well under 2GB
+  private static final int TILES_PER_SEGMENT = 1024;
+  private static final int DEFAULT_CACHED_TILES = 64;
+
+  // scratch files of images that have not been closed, deleted at exit as a
+  // fallback; unlike File.deleteOnExit(), close() takes its file back out,
+  // so the set does not grow with every image ever made
+  private static final Set<Path> OPEN_FILES = ConcurrentHashMap.newKeySet();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      for (Path path : OPEN_FILES) {
+        try {
+          Files.deleteIfExists(path);
+        } catch (IOException e) {
+          // nothing more can be done at exit
+        }
+      }
+    }));
+  }
+
+  private int width;
+  private int height;
+  private int tilesX;
+  private int tilesY;
+  private int cachedTiles;
+  private Path file;
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private IntBuffer[] segments;
+  private LinkedHashMap<Integer, Tile> cache;
+
+  private static class Tile {
+    final int index;
+    final int[] pixels = new int[TILE_PIXELS];
+    boolean dirty;
+
+    Tile(int index) {
+      this.index = index;
+    }
+  }
+
+  /**
+   *  TiledPixImage() constructs a black image of the specified width and
+   *  height that caches up to 64 tiles (16MB) on the heap.
+   *
+   *  @param width the width of the image.
+   *  @param height the height of the image.
+   */
+  public TiledPixImage(int width, int height) {
+    this(width, height, DEFAULT_CACHED_TILES);
+  }
+
+  /**
+   *  TiledPixImage() constructs a black image of the specified width and
+   *  height that caches up to cachedTiles tiles on the heap.
+   *
+   *  @param width the width of the image.
+   *  @param height the height of the image.
+   *  @param cachedTiles the largest number of tiles kept on the heap.
+   */
+  public TiledPixImage(int width, int height, final int cachedTiles) {
+    if (cachedTiles < 1) {
+      throw new IllegalArgumentException("cachedTiles must be positive");
+    }
+    this.width = width;
+    this.height = height;
+    this.cachedTiles = cachedTiles;
+    this.tilesX = (width + TILE - 1) / TILE;
+    this.tilesY = (height + TILE - 1) / TILE;
+    int tiles = tilesX * tilesY;
+    this.segments = new IntBuffer[(tiles + TILES_PER_SEGMENT - 1) / TILES_PER_SEGMENT];
+    this.cache = new LinkedHashMap<Integer, Tile>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
+        if (size() > cachedTiles) {
+          writeBack(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+    try {
+      file = Files.createTempFile("piximage", ".tiles");
+      OPEN_FILES.add(file);
+      raf = new RandomAccessFile(file.toFile(), "rw");
+      // a sparse file of zeros, so every pixel starts out black
+      raf.setLength(tiles * TILE_BYTES);
+      channel = raf.getChannel();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   *  getWidth() returns the width of the image.
+   *
+   *  @return the width of the image.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   *  getHeight() returns the height of the image.
+   *
+   *  @return the height of the image.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   *  getRed() returns the red intensity of the pixel at coordinate (x, y).
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   *  @return the red intensity of the pixel at coordinate (x, y).
+   *  @throws IndexOutOfBoundsException if (x, y) is off the image.
+   */
+  public short getRed(int x, int y) {
+    return (short) ((getRGB(x, y) >> 16) & 0xFF);
+  }
+
+  /**
+   *  getGreen() returns the green intensity of the pixel at coordinate (x, y).
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   *  @return the green intensity of the pixel at coordinate (x, y).
+   *  @throws IndexOutOfBoundsException if (x, y) is off the image.
+   */
+  public short getGreen(int x, int y) {
+    return (short) ((getRGB(x, y) >> 8) & 0xFF);
+  }
+
+  /**
+   *  getBlue() returns the blue intensity of the pixel at coordinate (x, y).
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   *  @return the blue intensity of the pixel at coordinate (x, y).
+   *  @throws IndexOutOfBoundsException if (x, y) is off the image.
+   */
+  public short getBlue(int x, int y) {
+    return (short) (getRGB(x, y) & 0xFF);
+  }
+
+  /**
+   *  setPixel() sets the pixel at coordinate (x, y) to specified red, green,
+   *  and blue intensities.  If any of the three intensities is NOT in the
+   *  range 0...255, the pixel is not changed.
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   *  @param red the new red intensity for the pixel at coordinate (x, y).
+   *  @param green the new green intensity for the pixel at coordinate (x, y).
+   *  @param blue the new blue intensity for the pixel at coordinate (x, y).
+   *  @throws IndexOutOfBoundsException if (x, y) is off the image.
+   */
+  public void setPixel(int x, int y, short red, short green, short blue) {
+    if (red < 0 || red > 255 || green < 0 || green > 255 ||
+        blue < 0 || blue > 255) {
+      return;
+    }
+    setRGB(x, y, PixImage.pack(red, green, blue));
+  }
+
+  /**
+   *  getRGB() returns the pixel at coordinate (x, y) packed as 0x00RRGGBB.
+   *
+   *  @throws IndexOutOfBoundsException if (x, y) is off the image.
+   */
+  int getRGB(int x, int y) {
+    checkBounds(x, y);
+    return tile(x / TILE, y / TILE).pixels[(y % TILE) * TILE + x % TILE];
+  }
+
+  /**
+   *  setRGB() sets the pixel at coordinate (x, y) from a packed 0x00RRGGBB int.
+   *
+   *  @throws IndexOutOfBoundsException if (x, y) is off the image.
+   */
+  void setRGB(int x, int y, int rgb) {
+    checkBounds(x, y);
+    Tile tile = tile(x / TILE, y / TILE);
+    tile.pixels[(y % TILE) * TILE + x % TILE] = rgb & 0xFFFFFF;
+    tile.dirty = true;
+  }
+
+  /*
+  checkBounds throws if (x, y) is off the image; x / TILE would otherwise
+  find a pixel of a neighboring tile, or a tile past the end of the file
+   */
+  private void checkBounds(int x, int y) {
+    if (x < 0 || x >= width || y < 0 || y >= height) {
+      throw new IndexOutOfBoundsException("(" + x + ", " + y + ") is off the image");
+    }
+  }
+
+  /**
+   *  readRegion() copies the w x h pixels whose top left corner is (x, y)
+   *  into a new PixImage.
+   *
+   *  @return a w x h PixImage.
+   */
+  PixImage readRegion(int x, int y, int w, int h) {
+    PixImage region = new PixImage(w, h);
+    int[] dst = region.array();
+    for (int ty = y / TILE; ty <= (y + h - 1) / TILE; ty++) {
+      for (int tx = x / TILE; tx <= (x + w - 1) / TILE; tx++) {
+        int[] pixels = tile(tx, ty).pixels;
+        int fromX = Math.max(x, tx * TILE);
+        int toX = Math.min(x + w, (tx + 1) * TILE);
+        int fromY = Math.max(y, ty * TILE);
+        int toY = Math.min(y + h, (ty + 1) * TILE);
+        for (int j = fromY; j < toY; j++) {
+          System.arraycopy(pixels, (j - ty * TILE) * TILE + fromX - tx * TILE,
+                           dst, (j - y) * w + fromX - x, toX - fromX);
+        }
+      }
+    }
+    return region;
+  }
+
+  /**
+   *  writeRegion() copies the w x h pixels of source whose top left corner is
+   *  (sourceX, sourceY) into this image, with their top left corner at (x, y).
+   *  Each source row is read once and copied into the tiles it crosses span
+   *  by span.
+   */
+  void writeRegion(PixImage source, int sourceX, int sourceY,
+                   int x, int y, int w, int h) {
+    int[] row = new int[source.getWidth()];
+    for (int j = y; j < y + h; j++) {
+      source.readRow(sourceY + j - y, row, 0);
+      int ty = j / TILE;
+      for (int tx = x / TILE; tx <= (x + w - 1) / TILE; tx++) {
+        Tile tile = tile(tx, ty);
+        int fromX = Math.max(x, tx * TILE);
+        int toX = Math.min(x + w, (tx + 1) * TILE);
+        System.arraycopy(row, sourceX + fromX - x,
+                         tile.pixels, (j - ty * TILE) * TILE + fromX - tx * TILE,
+                         toX - fromX);
+        tile.dirty = true;
+      }
+    }
+  }
+
+  /**
+   *  toPixImage() copies this image into an on-heap PixImage.  Only use it on
+   *  images that fit in memory.
+   *
+   *  @return a PixImage with the same pixels as this image.
+   */
+  public PixImage toPixImage() {
+    return readRegion(0, 0, width, height);
+  }
+
+  /**
+   *  boxBlur() returns a blurred version of "this" image, exactly as
+   *  PixImage.boxBlur() would.  If numIterations is zero or negative, "this"
+   *  image is returned; otherwise the result is a new TiledPixImage.
+   *
+   *  @param numIterations the number of iterations of box blurring.
+   *  @return a blurred version of "this" image.
+   */
+  public TiledPixImage boxBlur(final int numIterations) {
+    if (numIterations <= 0) {
+      return this;
+    }
+    // each pass reaches one pixel further, so a halo of numIterations pixels
+    // keeps the middle of every tile exact
+    return mapTiles(numIterations, new TileOp() {
+      public PixImage apply(PixImage region) {
+        return region.boxBlur(numIterations);
+      }
+    });
+  }
+
+  /**
+   *  sobelEdges() applies the Sobel operator exactly as PixImage.sobelEdges()
+   *  would, and returns the edges as a new TiledPixImage.
+   *
+   *  @return a grayscale image representing the edges of the input image.
+   */
+  public TiledPixImage sobelEdges() {
+    return mapTiles(1, new TileOp() {
+      public PixImage apply(PixImage region) {
+        return region.sobelEdges();
+      }
+    });
+  }
+
+  private interface TileOp {
+    PixImage apply(PixImage region);
+  }
+
+  /*
+  mapTiles runs op on every tile, padded by halo pixels on each side that
+  lies inside the image, and writes the middle of each result to a new image
+   */
+  private TiledPixImage mapTiles(int halo, TileOp op) {
+    TiledPixImage out = new TiledPixImage(width, height, cachedTiles);
+    for (int ty = 0; ty < tilesY; ty++) {
+      for (int tx = 0; tx < tilesX; tx++) {
+        int x0 = tx * TILE;
+        int y0 = ty * TILE;
+        int x1 = Math.min(x0 + TILE, width);
+        int y1 = Math.min(y0 + TILE, height);
+        int rx0 = Math.max(x0 - halo, 0);
+        int ry0 = Math.max(y0 - halo, 0);
+        int rx1 = Math.min(x1 + halo, width);
+        int ry1 = Math.min(y1 + halo, height);
+        PixImage result = op.apply(readRegion(rx0, ry0, rx1 - rx0, ry1 - ry0));
+        out.writeRegion(result, x0 - rx0, y0 - ry0, x0, y0, x1 - x0, y1 - y0);
+      }
+    }
+    return out;
+  }
+
+  /**
+   *  flush() writes every changed tile in the cache back to the scratch file.
+   */
+  public void flush() {
+    for (Tile tile : cache.values()) {
+      writeBack(tile);
+    }
+  }
+
+  /**
+   *  close() releases the cache and deletes the scratch file.  The image must
+   *  not be used afterward.
+   */
+  public void close() {
+    cache.clear();
+    segments = null;
+    try {
+      channel.close();
+      raf.close();
+      Files.deleteIfExists(file);
+      OPEN_FILES.remove(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private Tile tile(int tx, int ty) {
+    Integer index = ty * tilesX + tx;
+    Tile tile = cache.get(index);
+    if (tile == null) {
+      tile = new Tile(index);
+      IntBuffer view = segmentView(index);
+      view.get(tile.pixels);
+      cache.put(index, tile);
+    }
+    return tile;
+  }
+
+  private void writeBack(Tile tile) {
+    if (tile.dirty) {
+      segmentView(tile.index).put(tile.pixels);
+      tile.dirty = false;
+    }
+  }
+
+  /*
+  segmentView returns a view of the mapped file positioned at the given tile
+   */
+  private IntBuffer segmentView(int index) {
+    int s = index / TILES_PER_SEGMENT;
+    if (segments[s] == null) {
+      long start = (long) s * TILES_PER_SEGMENT * TILE_BYTES;
+      long length = Math.min(TILES_PER_SEGMENT * TILE_BYTES,
+                             (long) tilesX * tilesY * TILE_BYTES - start);
+      try {
+        MappedByteBuffer mapped =
+            channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+        segments[s] = mapped.order(ByteOrder.nativeOrder()).asIntBuffer();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    IntBuffer view = segments[s].duplicate();
+    view.position((index % TILES_PER_SEGMENT) * TILE_PIXELS);
+    return view;
+  }
+}